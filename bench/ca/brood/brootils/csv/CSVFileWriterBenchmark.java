@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Throughput and allocation benchmark for the {@link CSVFileWriter} hot path.
+ * <p>
+ * Measures rows per second, bytes allocated per row and garbage collector activity
+ * for every combination of:
+ * <ul>
+ * <li>row width (number of columns)</li>
+ * <li>field mix: plain fields, fields with commas, fields with commas and quotes</li>
+ * <li>number of writing threads</li>
+ * <li>file-per-row or persistent mode</li>
+ * </ul>
+ * Everything is written to a temporary directory that is deleted afterwards.
+ * Run it with the library and log4j on the classpath:
+ * <pre>
+ * java -cp bin:lib/* ca.brood.brootils.csv.CSVFileWriterBenchmark [seconds per run] [warmup runs]
+ * </pre>
+ * Allocation is measured with the HotSpot specific thread allocation counters, so it
+ * shows up as n/a on JVMs that don't have them.
+ * @author Charles Hache
+ *
+ */
+public class CSVFileWriterBenchmark {
+	private static final int[] WIDTHS = {4, 16, 64};
+	private static final int[] THREADS = {1, 4, 16};
+	
+	private enum Mix {
+		PLAIN, COMMAS, QUOTES
+	}
+	
+	private enum Mode {
+		FILE_PER_ROW, PERSISTENT
+	}
+	
+	private static class Result {
+		long rows;
+		long nanos;
+		long allocatedBytes;
+		long gcCount;
+		long gcMillis;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+		int warmups = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		
+		File dir = Files.createTempDirectory("brootils-csv-bench").toFile();
+		try {
+			System.out.println(String.format("%-12s %6s %-7s %7s %14s %14s %10s %8s",
+					"mode", "width", "mix", "threads", "rows/s", "alloc B/row", "gc count", "gc ms"));
+			for (Mode mode : Mode.values()) {
+				for (int width : WIDTHS) {
+					for (Mix mix : Mix.values()) {
+						for (int threads : THREADS) {
+							for (int i=0; i<warmups; i++)
+								run(dir, mode, width, mix, threads, seconds);
+							Result r = run(dir, mode, width, mix, threads, seconds);
+							String alloc = r.allocatedBytes < 0 ? "n/a" : String.format("%.1f", (double)r.allocatedBytes / r.rows);
+							System.out.println(String.format("%-12s %6d %-7s %7d %14.0f %14s %10d %8d",
+									mode, width, mix, threads, r.rows * 1e9 / r.nanos, alloc, r.gcCount, r.gcMillis));
+						}
+					}
+				}
+			}
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files)
+					f.delete();
+			}
+			dir.delete();
+		}
+	}
+	
+	private static ArrayList<String> makeRow(int width, Mix mix) {
+		ArrayList<String> row = new ArrayList<String>(width);
+		for (int i=0; i<width; i++) {
+			switch (mix) {
+			case PLAIN:
+				row.add("value" + i);
+				break;
+			case COMMAS:
+				row.add(i % 2 == 0 ? "value" + i : "val,ue" + i);
+				break;
+			case QUOTES:
+				row.add(i % 2 == 0 ? "value" + i : "\"val,ue\"" + i);
+				break;
+			}
+		}
+		return row;
+	}
+	
+	private static Result run(File dir, Mode mode, int width, Mix mix, int threads, double seconds) throws Exception {
+		File file = new File(dir, mode + "-" + width + "-" + mix + "-" + threads + ".csv");
+		file.delete();
+		final CSVFileWriter writer = new CSVFileWriter(file.getPath());
+		writer.setHeaders(makeRow(width, Mix.PLAIN));
+		if (mode == Mode.PERSISTENT) {
+			writer.setPersistent(true);
+			writer.setFlushPolicy(0, 0);
+		}
+		
+		final ArrayList<String> row = makeRow(width, mix);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] rows = new long[threads];
+		final long[] allocated = new long[threads];
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t=0; t<threads; t++) {
+			final int index = t;
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long before = allocatedBytes();
+					long count = 0;
+					while (!stop.get()) {
+						writer.writeData(row);
+						count++;
+					}
+					allocated[index] = before < 0 ? -1 : allocatedBytes() - before;
+					rows[index] = count;
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		
+		long gcCountBefore = gcCount();
+		long gcMillisBefore = gcMillis();
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep((long)(seconds * 1000));
+		stop.set(true);
+		for (Thread worker : workers)
+			worker.join();
+		writer.close();
+		
+		Result r = new Result();
+		r.nanos = System.nanoTime() - begin;
+		r.gcCount = gcCount() - gcCountBefore;
+		r.gcMillis = gcMillis() - gcMillisBefore;
+		for (int t=0; t<threads; t++) {
+			r.rows += rows[t];
+			if (allocated[t] < 0 || r.allocatedBytes < 0)
+				r.allocatedBytes = -1;
+			else
+				r.allocatedBytes += allocated[t];
+		}
+		r.rows = Math.max(1, r.rows);
+		if (!file.delete())
+			throw new IOException("Couldn't delete "+file);
+		return r;
+	}
+	
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)bean;
+			if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+	
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+}
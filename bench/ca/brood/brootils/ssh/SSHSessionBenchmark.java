@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ProcessShellCommandFactory;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+/** Throughput benchmarks for {@link SSHSession}'s SCP transfers and port forwards.
+ * <p>
+ * By default it starts an SSH server of its own in this JVM (Apache MINA SSHD, from lib/),
+ * listening on the loopback address with a random password, so it runs offline with no setup.
+ * Remote commands are run with /bin/sh as the current user.
+ * To run against a real server instead, on this machine or any other, set ssh.host:
+ * <ul>
+ * <li>ssh.host and ssh.port (default 22)</li>
+ * <li>ssh.user (default the current user)</li>
+ * <li>ssh.key (default ~/.ssh/id_rsa) or ssh.password</li>
+ * </ul>
+ * It measures:
+ * <ul>
+ * <li>SCP upload and download throughput for a range of file sizes</li>
+ * <li>the cost of a small transfer on a pooled session, and on a newly connected one</li>
+ * <li>upload throughput of compressible and incompressible data for each {@link SSHTransferProfile}</li>
+ * <li>throughput through a local port forward to a sink and from a source on this machine,
+ * with and without forward metrics</li>
+ * </ul>
+ * Files are written to a temporary directory here and under /tmp on the server, and both are deleted afterwards.
+ * Run it with the library and its dependencies on the classpath:
+ * <pre>
+ * java -cp bin:lib/* ca.brood.brootils.ssh.SSHSessionBenchmark [repetitions] [max file MB]
+ * </pre>
+ * The embedded server's own CPU use shows up in the numbers, so compare runs against the same kind of server.
+ * @author Charles Hache
+ *
+ */
+public class SSHSessionBenchmark {
+	private static final int[] SIZES_KB = {1, 64, 1024, 16*1024, 128*1024};
+	private static final int FORWARD_MB = 256;
+	
+	private static String host;
+	private static int port;
+	private static String user;
+	private static String password;
+	private static String key;
+	
+	public static void main(String[] args) throws Exception {
+		int reps = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int maxMB = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+		host = System.getProperty("ssh.host");
+		user = System.getProperty("ssh.user", System.getProperty("user.name"));
+		SshServer server = null;
+		if (host == null) {
+			server = startServer();
+			host = "127.0.0.1";
+			port = server.getPort();
+			System.out.println("Using an embedded SSH server on port "+port);
+		} else {
+			port = Integer.parseInt(System.getProperty("ssh.port", "22"));
+			password = System.getProperty("ssh.password");
+			key = System.getProperty("ssh.key", System.getProperty("user.home")+"/.ssh/id_rsa");
+		}
+		try {
+			run(reps, maxMB);
+		} finally {
+			if (server != null)
+				server.stop(true);
+		}
+	}
+	
+	/* Starts an SSH server on the loopback address that takes a random password,
+	 * runs scp itself and other commands with /bin/sh, and allows port forwarding.
+	 */
+	private static SshServer startServer() throws IOException {
+		final String secret = Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime());
+		SshServer server = SshServer.setUpDefaultServer();
+		server.setHost("127.0.0.1");
+		server.setPort(0);
+		SimpleGeneratorHostKeyProvider hostKey = new SimpleGeneratorHostKeyProvider();
+		hostKey.setAlgorithm("RSA");	//JSch 0.1.53 only knows RSA and DSA host keys
+		server.setKeyPairProvider(hostKey);
+		server.setPasswordAuthenticator(new PasswordAuthenticator() {
+			@Override
+			public boolean authenticate(String username, String pass, ServerSession session) {
+				return secret.equals(pass);
+			}
+		});
+		server.setCommandFactory(new ScpCommandFactory.Builder().withDelegate(ProcessShellCommandFactory.INSTANCE).build());
+		server.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+		server.start();
+		password = secret;
+		return server;
+	}
+	
+	private static void run(int reps, int maxMB) throws Exception {
+		SSHSession ssh = newSession();
+		File dir = Files.createTempDirectory("brootils-ssh-bench").toFile();
+		String remoteDir = "/tmp/brootils-ssh-bench-"+System.nanoTime();
+		try {
+			exec("mkdir -p "+remoteDir);
+			
+			System.out.println("SCP throughput");
+			System.out.println(String.format("%10s %14s %14s", "size KB", "upload MB/s", "download MB/s"));
+			for (int kb : SIZES_KB) {
+				if (kb > maxMB * 1024)
+					continue;
+				File local = makeFile(dir, "data-"+kb, kb * 1024L, false);
+				File back = new File(dir, "back-"+kb);
+				String remote = remoteDir+"/data-"+kb;
+				ssh.scpFileToRemote(remote, local.getPath());	//warm up the pool
+				double up = 0, down = 0;
+				for (int i=0; i<reps; i++) {
+					up += rate(ssh.scpFilesToRemote(single(remote, local.getPath())).get(remote));
+					down += rate(ssh.scpFilesFromRemote(single(remote, back.getPath())).get(remote));
+				}
+				System.out.println(String.format("%10d %14.1f %14.1f", kb, up / reps, down / reps));
+				local.delete();
+				back.delete();
+			}
+			
+			System.out.println();
+			System.out.println("Connection overhead, 1KB upload");
+			File small = makeFile(dir, "small", 1024, false);
+			String remoteSmall = remoteDir+"/small";
+			int count = reps * 10;
+			long begin = System.nanoTime();
+			for (int i=0; i<count; i++)
+				ssh.scpFileToRemote(remoteSmall, small.getPath());
+			double pooled = (System.nanoTime() - begin) / 1e6 / count;
+			begin = System.nanoTime();
+			for (int i=0; i<count; i++) {
+				//a pool of its own, so every transfer connects
+				SSHSessionPool own = new SSHSessionPool();
+				SSHSession fresh = newSession();
+				fresh.setSessionPool(own);
+				fresh.scpFileToRemote(remoteSmall, small.getPath());
+				fresh.close();
+				own.close();
+			}
+			double unpooled = (System.nanoTime() - begin) / 1e6 / count;
+			System.out.println(String.format("pooled session %8.1f ms/transfer", pooled));
+			System.out.println(String.format("new session    %8.1f ms/transfer", unpooled));
+			
+			System.out.println();
+			System.out.println("Transfer profiles, 16MB upload");
+			System.out.println(String.format("%-20s %16s %18s", "profile", "text MB/s", "random MB/s"));
+			File text = makeFile(dir, "text.csv", Math.min(16, maxMB) * 1024L * 1024, true);
+			File random = makeFile(dir, "random.bin", Math.min(16, maxMB) * 1024L * 1024, false);
+			for (SSHTransferProfile profile : SSHTransferProfile.values()) {
+				SSHSession s = newSession();
+				s.setTransferProfile(profile);
+				double t = 0, r = 0;
+				for (int i=0; i<reps; i++) {
+					t += rate(s.scpFilesToRemote(single(remoteDir+"/text.csv", text.getPath())).get(remoteDir+"/text.csv"));
+					r += rate(s.scpFilesToRemote(single(remoteDir+"/random.bin", random.getPath())).get(remoteDir+"/random.bin"));
+				}
+				s.close();
+				System.out.println(String.format("%-20s %16.1f %18.1f", profile, t / reps, r / reps));
+			}
+			
+			System.out.println();
+			System.out.println("Local port forward, "+FORWARD_MB+"MB");
+			System.out.println(String.format("%-10s %14s %14s %14s", "metrics", "upload MB/s", "download MB/s", "first byte ms"));
+			for (boolean metered : new boolean[] {false, true}) {
+				SSHSession s = newSession();
+				s.setForwardMetrics(metered);
+				double up = 0, down = 0, connect = 0;
+				ServerSocket sink = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+				ServerSocket source = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+				int sinkForward = freePort();
+				int sourceForward = freePort();
+				s.localForward(sinkForward, "127.0.0.1", sink.getLocalPort());
+				s.localForward(sourceForward, "127.0.0.1", source.getLocalPort());
+				for (int i=0; i<reps; i++) {
+					long[] c = new long[1];
+					up += forwardRate(sinkForward, sink, true, c);
+					down += forwardRate(sourceForward, source, false, c);
+					connect += c[0] / 1e6;
+				}
+				s.close();
+				sink.close();
+				source.close();
+				System.out.println(String.format("%-10s %14.1f %14.1f %14.2f", metered, up / reps, down / reps, connect / reps));
+			}
+		} finally {
+			ssh.close();
+			try {
+				exec("rm -rf "+remoteDir);
+			} catch (Exception e) {
+				System.err.println("Couldn't remove "+remoteDir+": "+e);
+			}
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files)
+					f.delete();
+			}
+			dir.delete();
+		}
+	}
+	
+	private static SSHSession newSession() throws Exception {
+		SSHSession s = new SSHSession();
+		s.configure(host, port, user);
+		if (password != null)
+			s.setPasswordAuth(password);
+		else
+			s.setKeyfileAuth(key, null);
+		return s;
+	}
+	
+	/* Runs a setup or cleanup command on the server, outside of the code being measured */
+	private static void exec(String command) throws Exception {
+		JSch jsch = new JSch();
+		if (password == null)
+			jsch.addIdentity(key);
+		Session session = jsch.getSession(user, host, port);
+		if (password != null)
+			session.setPassword(password);
+		session.setConfig("StrictHostKeyChecking", "no");
+		session.connect();
+		try {
+			ChannelExec channel = (ChannelExec)session.openChannel("exec");
+			channel.setCommand(command);
+			InputStream in = channel.getInputStream();
+			channel.connect();
+			while (in.read() >= 0) {
+				//wait for it to finish
+			}
+			channel.disconnect();
+		} finally {
+			session.disconnect();
+		}
+	}
+	
+	private static Map<String, String> single(String remote, String local) {
+		Map<String, String> m = new LinkedHashMap<String, String>();
+		m.put(remote, local);
+		return m;
+	}
+	
+	private static double rate(TransferResult r) throws IOException {
+		if (r == null || !r.isSuccess())
+			throw new IOException("Transfer failed: "+r);
+		return r.getBytesPerSecond() / (1024 * 1024);
+	}
+	
+	/* Makes a file of random bytes, or of CSV-like text that compresses well */
+	private static File makeFile(File dir, String name, long size, boolean text) throws IOException {
+		File f = new File(dir, name);
+		Random random = new Random(size);
+		byte[] buf = new byte[64 * 1024];
+		OutputStream out = new FileOutputStream(f);
+		try {
+			long left = size;
+			while (left > 0) {
+				if (text) {
+					StringBuilder sb = new StringBuilder();
+					while (sb.length() < buf.length)
+						sb.append(System.currentTimeMillis()).append(", ").append(random.nextInt(1000)).append(".").append(random.nextInt(10)).append(", ok\n");
+					System.arraycopy(sb.toString().getBytes("US-ASCII"), 0, buf, 0, buf.length);
+				} else {
+					random.nextBytes(buf);
+				}
+				int len = (int)Math.min(buf.length, left);
+				out.write(buf, 0, len);
+				left -= len;
+			}
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+	
+	private static int freePort() throws IOException {
+		ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		int p = ss.getLocalPort();
+		ss.close();
+		return p;
+	}
+	
+	/* Pushes FORWARD_MB through a forwarded port, to the server behind it if upload, or from it.
+	 * Returns MB/s; for a download, connectNanos[0] is set to the time until the first byte made it through.
+	 */
+	private static double forwardRate(int forwardPort, final ServerSocket server, final boolean upload, long[] connectNanos) throws Exception {
+		final long total = FORWARD_MB * 1024L * 1024;
+		final Exception[] error = new Exception[1];
+		Thread far = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket s = server.accept();
+					pump(s, upload, total);
+					s.close();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		far.start();
+		long begin = System.nanoTime();
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), forwardPort);
+		if (!upload) {
+			//time to first byte
+			if (client.getInputStream().read() < 0)
+				throw new IOException("Forward closed");
+			connectNanos[0] = System.nanoTime() - begin;
+			pump(client, true, total - 1);
+		} else {
+			pump(client, false, total);
+			client.shutdownOutput();
+			client.getInputStream().read();	//wait for the sink to close
+		}
+		client.close();
+		far.join();
+		if (error[0] != null)
+			throw error[0];
+		return total / ((System.nanoTime() - begin) / 1e9) / (1024 * 1024);
+	}
+	
+	/* Reads total bytes from the socket if receive, otherwise writes them */
+	private static void pump(Socket s, boolean receive, long total) throws IOException {
+		byte[] buf = new byte[64 * 1024];
+		if (receive) {
+			InputStream in = s.getInputStream();
+			long got = 0;
+			int len;
+			while (got < total && (len = in.read(buf)) >= 0)
+				got += len;
+		} else {
+			OutputStream out = s.getOutputStream();
+			long left = total;
+			while (left > 0) {
+				int len = (int)Math.min(buf.length, left);
+				out.write(buf, 0, len);
+				left -= len;
+			}
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** Non-blocking front end for a {@link CSVFileWriter}.
+ * Rows are put into a bounded ring buffer and the calling thread returns right away.
+ * A single background thread takes rows out of the buffer in batches, writes each
+ * batch with {@link CSVFileWriter#writeRows(Iterable)} and flushes it to disk (group commit).
+ * Optionally the file is also synced to the storage device every so often,
+ * see {@link #setSyncInterval(long)}.
+ * <p>
+ * What happens when the buffer is full is decided by the {@link OverflowPolicy}.
+ * The number of rows enqueued, written, dropped and failed can be read at any time.
+ * <p>
+ * The wrapped writer is put into persistent mode and is owned by this object
+ * from then on; don't write to it directly.  Call {@link #close()} to write out
+ * everything that is still buffered and stop the background thread.
+ * @author Charles Hache
+ *
+ */
+public class AsyncCSVFileWriter {
+	/** What to do with a new row when the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** Wait until there is room in the buffer. */
+		BLOCK,
+		/** Throw away the new row. */
+		DROP_NEWEST,
+		/** Throw away the oldest row in the buffer to make room for the new one. */
+		DROP_OLDEST
+	}
+	
+	/** Bounded lock-free multi-producer/multi-consumer queue.
+	 * Each slot has a sequence number that tells producers and consumers whose turn it is.
+	 * Consumers are needed on the producer side too to implement {@link OverflowPolicy#DROP_OLDEST}.
+	 */
+	private static final class RingBuffer<E> {
+		private final int mask;
+		private final AtomicReferenceArray<E> items;
+		private final AtomicLongArray sequences;
+		private final AtomicLong head = new AtomicLong();
+		private final AtomicLong tail = new AtomicLong();
+		
+		public RingBuffer(int capacity) {
+			int size = 1;
+			while (size < capacity)
+				size <<= 1;
+			mask = size - 1;
+			items = new AtomicReferenceArray<E>(size);
+			sequences = new AtomicLongArray(size);
+			for (int i=0; i<size; i++)
+				sequences.set(i, i);
+		}
+		
+		public int capacity() {
+			return mask + 1;
+		}
+		
+		public boolean isEmpty() {
+			return head.get() >= tail.get();
+		}
+		
+		public boolean offer(E item) {
+			long pos = tail.get();
+			while (true) {
+				int index = (int)(pos & mask);
+				long diff = sequences.get(index) - pos;
+				if (diff == 0) {
+					if (tail.compareAndSet(pos, pos + 1)) {
+						items.set(index, item);
+						sequences.set(index, pos + 1);
+						return true;
+					}
+					pos = tail.get();
+				} else if (diff < 0) {
+					return false;	//full
+				} else {
+					pos = tail.get();
+				}
+			}
+		}
+		
+		public E poll() {
+			long pos = head.get();
+			while (true) {
+				int index = (int)(pos & mask);
+				long diff = sequences.get(index) - (pos + 1);
+				if (diff == 0) {
+					if (head.compareAndSet(pos, pos + 1)) {
+						E item = items.get(index);
+						items.set(index, null);
+						sequences.set(index, pos + mask + 1);
+						return item;
+					}
+					pos = head.get();
+				} else if (diff < 0) {
+					return null;	//empty
+				} else {
+					pos = head.get();
+				}
+			}
+		}
+	}
+	
+	private class WriterThread extends Thread {
+		public WriterThread() {
+			super("AsyncCSVFileWriter-"+writer.getFilename());
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			ArrayList<List<String>> batch = new ArrayList<List<String>>(batchSize);
+			long lastSync = System.currentTimeMillis();
+			while (true) {
+				List<String> row;
+				while (batch.size() < batchSize && (row = buffer.poll()) != null) {
+					batch.add(row);
+				}
+				
+				if (batch.isEmpty()) {
+					if (!running) {
+						break;
+					}
+					idle = true;
+					if (buffer.isEmpty() && running) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+					idle = false;
+				} else {
+					if (writer.writeRows(batch) && writer.flush()) {
+						written.addAndGet(batch.size());
+					} else {
+						failed.addAndGet(batch.size());
+					}
+					batch.clear();
+				}
+				
+				long now = System.currentTimeMillis();
+				if (syncIntervalMillis > 0 && now - lastSync >= syncIntervalMillis) {
+					writer.sync();
+					lastSync = now;
+				}
+			}
+			if (syncIntervalMillis > 0)
+				writer.sync();
+			writer.close();
+		}
+	}
+	
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	
+	private Logger log;
+	private final CSVFileWriter writer;
+	private final RingBuffer<List<String>> buffer;
+	private final OverflowPolicy policy;
+	private final int batchSize;
+	private volatile long syncIntervalMillis;
+	private volatile boolean running;
+	private volatile boolean idle;
+	private final WriterThread thread;
+	
+	//producers inside writeData(), so close() can wait for them before the last drain
+	private final AtomicInteger producers = new AtomicInteger();
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	
+	/** Creates an asynchronous writer in front of the given writer and starts its background thread.
+	 * @param writer The writer to write the rows with.  It is switched to persistent mode.
+	 * @param capacity The number of rows the ring buffer can hold.  Rounded up to a power of two.
+	 * @param policy What to do when the ring buffer is full.
+	 */
+	public AsyncCSVFileWriter(CSVFileWriter writer, int capacity, OverflowPolicy policy) {
+		log = LogManager.getLogger(AsyncCSVFileWriter.class);
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.writer = writer;
+		this.policy = policy;
+		this.buffer = new RingBuffer<List<String>>(capacity);
+		this.batchSize = Math.min(this.buffer.capacity(), 4096);
+		this.syncIntervalMillis = 0;
+		
+		writer.setPersistent(true);
+		writer.setFlushPolicy(0, 0);	//we flush once per batch
+		
+		running = true;
+		thread = new WriterThread();
+		thread.start();
+	}
+	
+	/** Creates an asynchronous writer that writes to the given filename.
+	 * @param fileName The name of the CSV file.
+	 * @param capacity The number of rows the ring buffer can hold.  Rounded up to a power of two.
+	 * @param policy What to do when the ring buffer is full.
+	 */
+	public AsyncCSVFileWriter(String fileName, int capacity, OverflowPolicy policy) {
+		this(new CSVFileWriter(fileName), capacity, policy);
+	}
+	
+	/** Sets how often the background thread syncs the file to the storage device.
+	 * Pass 0 (the default) to never sync; the data is still flushed to the
+	 * operating system after every batch.
+	 * @param millis The sync interval in milliseconds, or 0.
+	 */
+	public void setSyncInterval(long millis) {
+		syncIntervalMillis = Math.max(0, millis);
+	}
+	
+	/** Queues a row to be written.
+	 * The row must not be modified after it's been passed in.
+	 * @param values The data to write.
+	 * @return true if the row was queued, false if it was dropped or this writer is closed.
+	 */
+	public boolean writeData(List<String> values) {
+		producers.incrementAndGet();	//before looking at running; see close()
+		try {
+			return enqueue(values);
+		} finally {
+			producers.decrementAndGet();
+		}
+	}
+	
+	private boolean enqueue(List<String> values) {
+		if (!running) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		
+		boolean ret = true;
+		while (!buffer.offer(values)) {
+			if (policy == OverflowPolicy.DROP_NEWEST) {
+				ret = false;
+				break;
+			} else if (policy == OverflowPolicy.DROP_OLDEST) {
+				if (buffer.poll() != null)
+					dropped.incrementAndGet();
+			} else {
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(this, FULL_PARK_NANOS);
+				if (!running) {
+					ret = false;
+					break;
+				}
+			}
+		}
+		
+		if (ret) {
+			enqueued.incrementAndGet();
+			if (idle)
+				LockSupport.unpark(thread);
+		} else {
+			dropped.incrementAndGet();
+		}
+		return ret;
+	}
+	
+	/** Queues several rows to be written.
+	 * The overflow policy is applied to each row separately.
+	 * @param rows The rows to write, one list of values per row.
+	 * @return The number of rows that were queued.
+	 */
+	public int writeRows(Iterable<? extends List<String>> rows) {
+		int count = 0;
+		for (List<String> row : rows) {
+			if (writeData(row))
+				count++;
+		}
+		return count;
+	}
+	
+	/** Stops accepting rows, waits for all queued rows to be written and closes the file.
+	 */
+	public void close() {
+		running = false;
+		//A producer that saw running before it was cleared might still offer a row.
+		//Any producer that comes in from now on sees it cleared, so wait for the ones already in.
+		while (producers.get() > 0) {
+			LockSupport.parkNanos(this, FULL_PARK_NANOS);
+		}
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		
+		//Rows that slipped in while we were shutting down
+		ArrayList<List<String>> rest = new ArrayList<List<String>>();
+		List<String> row;
+		while ((row = buffer.poll()) != null) {
+			rest.add(row);
+		}
+		if (!rest.isEmpty()) {
+			if (writer.writeRows(rest))
+				written.addAndGet(rest.size());
+			else
+				failed.addAndGet(rest.size());
+			writer.close();
+		}
+		
+		if (failed.get() > 0)
+			log.warn("Failed to write "+failed.get()+" rows to "+writer.getFilename());
+	}
+	
+	/** Gets the number of rows that have been accepted into the ring buffer.
+	 * @return The number of rows enqueued.
+	 */
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+	
+	/** Gets the number of rows that have been written to the file.
+	 * @return The number of rows written.
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+	
+	/** Gets the number of rows that were thrown away because of the overflow policy,
+	 * or because they were written after {@link #close()} was called.
+	 * @return The number of rows dropped.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/** Gets the number of rows that were taken from the ring buffer but couldn't be written to the file.
+	 * @return The number of rows that failed.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/** Encodes CSV rows straight into a reusable {@link ByteBuffer}.
+ * Text is encoded as UTF-8 with a fast path for ASCII, and numbers are
+ * formatted without going through a {@link String}, so encoding a row
+ * creates next to no garbage.
+ * <p>
+ * When the buffer fills up it is drained to the channel set with
+ * {@link #setChannel(WritableByteChannel)}.  If there is no channel the buffer grows instead.
+ * <p>
+ * Fields are escaped the way {@link CSVFileWriter} always has: a field that contains
+ * a comma is enclosed in double quotes, and any double quotes inside it are doubled.
+ * Fields are separated with ", ".
+ * @author Charles Hache
+ *
+ */
+final class CSVEncoder {
+	private static final byte[] SEPARATOR = {',', ' '};
+	private static final byte QUOTE = '"';
+	
+	private ByteBuffer buffer;
+	private WritableByteChannel channel;
+	private final byte[] newline;
+	private final StringBuilder number;
+	private long drained;
+	
+	/** Creates an encoder.
+	 * @param capacity The initial size of the buffer.
+	 * @param newline The bytes to end each row with.
+	 */
+	public CSVEncoder(int capacity, byte[] newline) {
+		this.buffer = ByteBuffer.allocate(capacity);
+		this.newline = newline;
+		this.number = new StringBuilder(32);
+	}
+	
+	/** Sets the channel to drain the buffer to when it's full.
+	 * @param channel The channel, or null to grow the buffer instead.
+	 */
+	public void setChannel(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+	
+	/** Gets the buffer that rows are encoded into.
+	 * The encoded bytes are between 0 and the buffer's position.
+	 * @return The buffer.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/** Gets the number of bytes in the buffer.
+	 * @return The number of encoded bytes that haven't been drained yet.
+	 */
+	public int size() {
+		return buffer.position();
+	}
+	
+	/** Gets the number of bytes encoded so far.
+	 * This includes bytes that have been drained to a channel, and doesn't include bytes
+	 * that were thrown away by {@link #clear()}.
+	 * @return The number of bytes encoded.
+	 */
+	public long count() {
+		return drained + buffer.position();
+	}
+	
+	/** Throws away everything in the buffer.
+	 */
+	public void clear() {
+		buffer.clear();
+	}
+	
+	/** Writes everything in the buffer to the channel.
+	 * Does nothing if there is no channel.
+	 * @throws IOException If the channel can't be written to.
+	 */
+	public void flush() throws IOException {
+		if (channel == null)
+			return;
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				drained += channel.write(buffer);
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+	
+	/** Copies bytes that were already encoded, such as another encoder's buffer.
+	 * Large amounts are written straight to the channel instead of being copied into the buffer.
+	 * @param data The bytes to copy, from its position to its limit.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		if (channel != null && data.remaining() > buffer.remaining()) {
+			flush();
+			while (data.hasRemaining()) {
+				drained += channel.write(data);
+			}
+			return;
+		}
+		ensure(data.remaining());
+		buffer.put(data);
+	}
+	
+	/** Encodes a full row, separators and newline included.
+	 * @param values The fields of the row.  Null values are written as empty fields.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void row(List<String> values) throws IOException {
+		boolean first = true;
+		for (String val : values) {
+			if (!first)
+				separator();
+			else
+				first = false;
+			field(val);
+		}
+		newline();
+	}
+	
+	/** Encodes the separator that goes between two fields.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void separator() throws IOException {
+		ensure(SEPARATOR.length);
+		buffer.put(SEPARATOR);
+	}
+	
+	/** Encodes the end of a row.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void newline() throws IOException {
+		ensure(newline.length);
+		buffer.put(newline);
+	}
+	
+	/** Encodes a text field, escaping it if needed.
+	 * @param data The field.  Null is written as an empty field.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void field(String data) throws IOException {
+		if (data == null)
+			return;
+		//If there is a comma in the data, then we need to enclose it in double quotes.
+		//But, then if there is a double quote in there, we need to replace it with double doublequotes.
+		if (data.indexOf(',') >= 0) {
+			ensure(1);
+			buffer.put(QUOTE);
+			encode(data, true);
+			ensure(1);
+			buffer.put(QUOTE);
+		} else {
+			encode(data, false);
+		}
+	}
+	
+	/** Encodes a whole number field.
+	 * @param value The number.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void field(long value) throws IOException {
+		ensure(20);
+		if (value == Long.MIN_VALUE) {
+			//Can't be negated, so let the JDK do this one
+			number.setLength(0);
+			number.append(value);
+			encode(number, false);
+			return;
+		}
+		byte[] a = buffer.array();
+		int pos = buffer.arrayOffset() + buffer.position();
+		if (value < 0) {
+			a[pos++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+			digits++;
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			a[i] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+		buffer.position(pos + digits - buffer.arrayOffset());
+	}
+	
+	/** Encodes a decimal number field.
+	 * The number is formatted the same way as {@link Double#toString(double)}.
+	 * @param value The number.
+	 * @throws IOException If the buffer had to be drained and that failed.
+	 */
+	public void field(double value) throws IOException {
+		number.setLength(0);
+		number.append(value);
+		encode(number, false);
+	}
+	
+	private void encode(CharSequence data, boolean escapeQuotes) throws IOException {
+		int len = data.length();
+		int i = 0;
+		while (i < len) {
+			ensure(4);
+			byte[] a = buffer.array();
+			int pos = buffer.arrayOffset() + buffer.position();
+			//Leave room for the longest UTF-8 sequence, or a doubled quote
+			int end = buffer.arrayOffset() + buffer.limit() - 4;
+			
+			while (i < len && pos <= end) {
+				char c = data.charAt(i++);
+				if (c < 0x80) {
+					if (c == '"' && escapeQuotes)
+						a[pos++] = QUOTE;
+					a[pos++] = (byte)c;
+				} else if (c < 0x800) {
+					a[pos++] = (byte)(0xC0 | (c >> 6));
+					a[pos++] = (byte)(0x80 | (c & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(data.charAt(i))) {
+						int cp = Character.toCodePoint(c, data.charAt(i++));
+						a[pos++] = (byte)(0xF0 | (cp >> 18));
+						a[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+						a[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+						a[pos++] = (byte)(0x80 | (cp & 0x3F));
+					} else {
+						a[pos++] = '?';	//unpaired surrogate
+					}
+				} else {
+					a[pos++] = (byte)(0xE0 | (c >> 12));
+					a[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+					a[pos++] = (byte)(0x80 | (c & 0x3F));
+				}
+			}
+			buffer.position(pos - buffer.arrayOffset());
+		}
+	}
+	
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes)
+			return;
+		if (channel != null) {
+			flush();
+		}
+		if (buffer.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
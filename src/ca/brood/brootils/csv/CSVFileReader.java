@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads CSV files like the ones written by {@link CSVFileWriter}.
+ * The file is memory mapped and rows are read into {@link CSVRow}s, which only
+ * record where each field is.  Nothing is copied or decoded until a field's
+ * value is asked for.
+ * <p>
+ * Fields are separated by commas, and a single space after a comma is skipped, so
+ * the ", " separators that {@link CSVFileWriter} writes are handled.  A field that
+ * {@link CSVFileWriter} enclosed in quotes (because it contains a comma) is read back
+ * with its doubled quotes undone, and may span several lines.  Because the writer only
+ * quotes fields that contain a comma, a field that starts with a quote but doesn't
+ * look like that is read as it is, quotes included.
+ * Rows end with either "\n" or "\r\n".
+ * <p>
+ * The file is read as it was when the reader was created.  Reading rows moves this
+ * reader's position; rows can be read from several threads at once with
+ * {@link #readRow(long, CSVRow)}, which doesn't.
+ * @author Charles Hache
+ *
+ */
+public class CSVFileReader implements Closeable {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = (int)(SEGMENT_SIZE - 1);
+	
+	private final File file;
+	private final long size;
+	private MappedByteBuffer[] segments;
+	private long position;
+	
+	/** Opens and maps the given file.
+	 * @param fileName The name of the CSV file.
+	 * @throws IOException If the file can't be opened or mapped.
+	 */
+	public CSVFileReader(String fileName) throws IOException {
+		this(new File(fileName));
+	}
+	
+	/** Opens and maps the given file.
+	 * @param file The CSV file.
+	 * @throws IOException If the file can't be opened or mapped.
+	 */
+	public CSVFileReader(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			size = channel.size();
+			int count = (int)((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			segments = new MappedByteBuffer[count];
+			for (int i=0; i<count; i++) {
+				long start = (long)i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+			}
+		} finally {
+			raf.close();	//the mappings stay valid
+		}
+		position = 0;
+	}
+	
+	/** Gets the file this reader reads.
+	 * @return The file.
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/** Gets the size of the file, as it was when it was mapped.
+	 * @return The size of the file in bytes.
+	 */
+	public long size() {
+		return size;
+	}
+	
+	/** Gets the offset of the next row that {@link #readRow(CSVRow)} will read.
+	 * @return The current byte offset.
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+	
+	/** Moves this reader to the given offset.
+	 * The offset should be the start of a row.
+	 * @param offset The byte offset to read the next row from.
+	 */
+	public synchronized void seek(long offset) {
+		if (offset < 0 || offset > size)
+			throw new IllegalArgumentException("Offset "+offset+" is outside the file");
+		position = offset;
+	}
+	
+	/** Moves this reader to the start of the given row, using an index to skip most of the file.
+	 * @param index The index of this reader's file.
+	 * @param row The row number to go to.
+	 * @return true if the row exists, false if the end of the file was reached first.
+	 */
+	public synchronized boolean seekToRow(CSVIndex index, long row) {
+		long pos = 0;
+		long current = 0;
+		int entry = index.findRow(row);
+		if (entry >= 0 && index.getOffset(entry) <= size) {
+			pos = index.getOffset(entry);
+			current = index.getRow(entry);
+		}
+		checkOpen();
+		while (current < row && pos < size) {
+			pos = parseRecord(pos, null);
+			current++;
+		}
+		position = pos;
+		return pos < size;
+	}
+	
+	/** Moves this reader to the first row whose timestamp is at or after the given time,
+	 * using an index to skip most of the file.  Rows whose timestamp can't be parsed
+	 * are skipped over on the way.
+	 * To read the rows between two times, seek to the first time and read rows
+	 * until one is past the second time.
+	 * @param index The index of this reader's file.  It must have a timestamp column.
+	 * @param timestamp The time to go to.
+	 * @return true if such a row exists, false if the end of the file was reached first.
+	 */
+	public synchronized boolean seekToTimestamp(CSVIndex index, long timestamp) {
+		int column = index.getTimestampColumn();
+		if (column < 0)
+			throw new IllegalArgumentException("The index has no timestamp column");
+		long pos = 0;
+		int entry = index.findTimestamp(timestamp);
+		if (entry >= 0 && index.getOffset(entry) <= size)
+			pos = index.getOffset(entry);
+		checkOpen();
+		CSVRow row = new CSVRow();
+		while (pos < size) {
+			long next = parseRecord(pos, row);
+			long ts = CSVIndex.parseTimestamp(row, column);
+			if (ts != Long.MIN_VALUE && ts >= timestamp)
+				break;
+			pos = next;
+		}
+		position = pos;
+		return pos < size;
+	}
+	
+	/** Reads the next row into the given row object.
+	 * @param row The row to fill.
+	 * @return true if a row was read, false at the end of the file.
+	 */
+	public synchronized boolean readRow(CSVRow row) {
+		if (position >= size)
+			return false;
+		position = readRow(position, row);
+		return true;
+	}
+	
+	/** Reads the next row into a new row object.
+	 * @return The row, or null at the end of the file.
+	 */
+	public CSVRow readRow() {
+		CSVRow row = new CSVRow();
+		if (readRow(row))
+			return row;
+		return null;
+	}
+	
+	/** Reads the row starting at the given offset, without changing this reader's position.
+	 * @param offset The byte offset where the row starts.
+	 * @param row The row to fill.
+	 * @return The offset of the next row.
+	 */
+	public long readRow(long offset, CSVRow row) {
+		checkOpen();
+		return parseRecord(offset, row);
+	}
+	
+	/** Unmaps the file.  Rows read from this reader can't be decoded afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		segments = null;	//unmapped when the buffers are garbage collected
+	}
+	
+	/* Parses one record starting at pos and returns the offset of the next one.
+	 * If row is null the record is just skipped.
+	 */
+	long parseRecord(long pos, CSVRow row) {
+		if (row != null)
+			row.clear(this, pos);
+		while (true) {
+			boolean isQuoted = false;
+			long start = pos;
+			long end = -1;
+			if (pos < size && byteAt(pos) == '"') {
+				end = findClosingQuote(pos + 1);
+				if (end >= 0) {
+					isQuoted = true;
+					start = pos + 1;
+					pos = end + 1;
+				}
+			}
+			if (!isQuoted) {
+				while (pos < size) {
+					byte b = byteAt(pos);
+					if (b == ',' || b == '\n' || b == '\r')
+						break;
+					pos++;
+				}
+				end = pos;
+			}
+			if (row != null)
+				row.addField(start, end, isQuoted);
+			
+			if (pos >= size)
+				break;
+			byte b = byteAt(pos++);
+			if (b == ',') {
+				if (pos < size && byteAt(pos) == ' ')
+					pos++;
+				continue;
+			}
+			if (b == '\r' && pos < size && byteAt(pos) == '\n')
+				pos++;
+			break;
+		}
+		if (row != null)
+			row.setRowEnd(pos);
+		return pos;
+	}
+	
+	/* Looks for the quote that closes a quoted field whose data starts at pos.
+	 * Returns -1 if this doesn't look like a field that the writer quoted: those always
+	 * contain a comma and the closing quote is followed by a separator or the end of the row.
+	 */
+	private long findClosingQuote(long pos) {
+		boolean sawComma = false;
+		while (pos < size) {
+			byte b = byteAt(pos);
+			if (b == '"') {
+				if (pos + 1 < size && byteAt(pos + 1) == '"') {
+					pos += 2;
+					continue;
+				}
+				if (!sawComma)
+					return -1;
+				if (pos + 1 < size) {
+					byte next = byteAt(pos + 1);
+					if (next != ',' && next != '\n' && next != '\r')
+						return -1;
+				}
+				return pos;
+			}
+			if (b == ',')
+				sawComma = true;
+			pos++;
+		}
+		return -1;
+	}
+	
+	byte byteAt(long pos) {
+		return segments[(int)(pos >>> SEGMENT_SHIFT)].get((int)pos & SEGMENT_MASK);
+	}
+	
+	void copy(long pos, byte[] dst, int off, int len) {
+		checkOpen();
+		while (len > 0) {
+			MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+			int index = (int)pos & SEGMENT_MASK;
+			int n = Math.min(len, segment.limit() - index);
+			ByteBuffer view = segment.duplicate();	//so concurrent readers don't share a position
+			view.position(index);
+			view.get(dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	private void checkOpen() {
+		if (segments == null)
+			throw new IllegalStateException("Reader is closed");
+	}
+}
@@ -23,18 +23,74 @@ package ca.brood.brootils.csv;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 
 /** Simple class for writing CSV files
+ * <p>
+ * By default every call to {@link #writeData(ArrayList)} or {@link #writeRows(Iterable)}
+ * opens the file, appends the data and closes the file again.  In persistent mode (see {@link #setPersistent(boolean)})
+ * the file is kept open and rows are buffered in memory until the flush policy
+ * set with {@link #setFlushPolicy(int, long)} says they should hit the disk.
+ * Persistent writers must be {@link #close() closed} when they are no longer needed.
+ * <p>
+ * Rows are encoded as UTF-8 into a reusable buffer, see {@link CSVEncoder}.
+ * {@link #writeRow(long, double...)} writes numeric rows without creating any strings.
+ * <p>
+ * The file can be rolled over automatically by size or time, see {@link #setRollingPolicy(CSVRollingPolicy)},
+ * and can have a sidecar index for fast seeking, see {@link #setIndex(int, int)}.
+ * <p>
+ * The file's directory is watched, and if the file is deleted or moved away (by logrotate,
+ * for example) the writer starts a new one, headers and all, on the next write.
  * @author Charles Hache
  *
  */
 public class CSVFileWriter {
+	private static final int BUFFER_SIZE = 64*1024;
+	//how long to wait before trying again when a file couldn't be rolled
+	private static final long ROLL_RETRY_MILLIS = 60000;
+	
+	private static ScheduledThreadPoolExecutor flusher = null;
+	
+	/* Flushes a writer when its flush interval is up, even if nothing is being written.
+	 * Only holds the writer weakly, so a writer that was never closed can still be collected.
+	 */
+	private static class FlushTask implements Runnable {
+		private final WeakReference<CSVFileWriter> writer;
+		private volatile ScheduledFuture<?> future;
+		
+		public FlushTask(CSVFileWriter writer) {
+			this.writer = new WeakReference<CSVFileWriter>(writer);
+		}
+		
+		@Override
+		public void run() {
+			CSVFileWriter w = writer.get();
+			if (w == null) {
+				if (future != null)
+					future.cancel(false);
+				return;
+			}
+			w.flushIfDue();
+		}
+	}
+	
 	private String filename;
 	private File file;
 	private boolean writeHeaders;
@@ -42,6 +98,37 @@ public class CSVFileWriter {
 	private ArrayList<String> headers;
 	private byte[] newline;
 	
+	private boolean persistent;
+	private int flushEveryRows;
+	private long flushIntervalMillis;
+	private FileChannel channel;
+	private CSVEncoder encoder;
+	private int unflushedRows;
+	private long lastFlushTime;
+	private FlushTask flushTask;
+	
+	private CSVRollingPolicy rollingPolicy;
+	private long fileBytes;
+	private long encodedMark;
+	private long rollTime;
+	private long rollRetryTime;
+	
+	private volatile int indexInterval;
+	private volatile int indexTimestampColumn;
+	private CSVIndex.Appender index;
+	private boolean indexStale;
+	
+	private Object fileKey;
+	private Path watchedPath;
+	private volatile boolean fileChanged;
+	//FileWatcher only holds this weakly, so it doesn't keep an unclosed writer alive
+	private final Runnable watchListener = new Runnable() {
+		@Override
+		public void run() {
+			fileChanged = true;
+		}
+	};
+	
 	/** Creates a writer that will write to the given filename.
 	 * @param fileName The name of the CSV file.
 	 */
@@ -51,6 +138,10 @@ public class CSVFileWriter {
 		writeHeaders = true;
 		headers = new ArrayList<String>();
 		newline = System.getProperty("line.separator").getBytes();
+		encoder = new CSVEncoder(BUFFER_SIZE, newline);
+		persistent = false;
+		flushEveryRows = 1;
+		flushIntervalMillis = 0;
 	}
 	
 	/** Copy constructor.
@@ -64,6 +155,13 @@ public class CSVFileWriter {
 		}
 		newline = new byte[o.newline.length];
 		System.arraycopy(o.newline, 0, newline, 0, newline.length);
+		encoder = new CSVEncoder(BUFFER_SIZE, newline);
+		this.persistent = o.persistent;
+		this.flushEveryRows = o.flushEveryRows;
+		this.flushIntervalMillis = o.flushIntervalMillis;
+		this.rollingPolicy = o.rollingPolicy;
+		this.indexInterval = o.indexInterval;
+		this.indexTimestampColumn = o.indexTimestampColumn;
 	}
 	
 	/** Gets the filename of this writer.
@@ -79,10 +177,171 @@ public class CSVFileWriter {
 	 * @param name The new filename.
 	 */
 	public synchronized void setFilename(String name) {
+		closeChannel();
+		closeIndex();
+		unwatchFile();
 		filename = name;
 		file = null;	//recreate the file next write
 	}
 	
+	/** Selects between the default file-per-row mode and persistent mode.
+	 * In persistent mode the file is opened once and kept open until {@link #close()}
+	 * or {@link #setFilename(String)} is called, and rows are written according to
+	 * the flush policy.  Switching modes flushes anything that is buffered.
+	 * @param persistent true to keep the file open between writes.
+	 */
+	public synchronized void setPersistent(boolean persistent) {
+		if (!persistent)
+			closeChannel();
+		this.persistent = persistent;
+	}
+	
+	/** Checks whether this writer keeps its file open between writes.
+	 * @return true if this writer is in persistent mode.
+	 */
+	public synchronized boolean isPersistent() {
+		return persistent;
+	}
+	
+	/** Sets the policy for rolling this writer's file over.
+	 * When the policy says so, the current file is renamed (and compressed in
+	 * the background) and a new file is started under the same name, headers included.
+	 * The policy is checked before each write.
+	 * @param policy The policy to use, or null to never roll.
+	 */
+	public synchronized void setRollingPolicy(CSVRollingPolicy policy) {
+		rollingPolicy = policy;
+		if (policy != null && file != null)
+			rollTime = policy.nextRollTime(startTimeOf(file));
+	}
+	
+	/** Gets the policy for rolling this writer's file over.
+	 * @return The policy, or null if the file is never rolled.
+	 */
+	public synchronized CSVRollingPolicy getRollingPolicy() {
+		return rollingPolicy;
+	}
+	
+	/** Turns on a sidecar index for the file, see {@link CSVIndex}.
+	 * Every <code>everyRows</code>th row gets an index entry with its offset and,
+	 * if a timestamp column is given, the whole number in that column.
+	 * If the file already has data, its index is checked and brought up to date
+	 * (or rebuilt) when the file is next opened.
+	 * @param everyRows Index every this many rows, or 0 to turn the index off.
+	 * @param timestampColumn The column holding the timestamp, or -1 for none.
+	 */
+	public synchronized void setIndex(int everyRows, int timestampColumn) {
+		closeIndex();
+		indexInterval = Math.max(0, everyRows);
+		indexTimestampColumn = timestampColumn < 0 ? -1 : timestampColumn;
+		indexStale = true;
+	}
+	
+	/** Sets when buffered rows are written to disk in persistent mode.
+	 * Rows are flushed once <code>everyRows</code> rows are buffered, or once
+	 * <code>everyMillis</code> milliseconds have passed since the last flush, whichever
+	 * comes first.  The row count is checked as rows are written, and the time is also
+	 * checked by a shared timer thread, so rows don't sit in memory through a quiet spell.  Pass 0 for either
+	 * to disable it; if both are 0 then rows are only flushed when the buffer fills up,
+	 * or when {@link #flush()}, {@link #close()} or {@link #setFilename(String)} is called.
+	 * The default is to flush after every row.
+	 * @param everyRows Number of rows to buffer before flushing, or 0.
+	 * @param everyMillis Maximum time in milliseconds between flushes, or 0.
+	 */
+	public synchronized void setFlushPolicy(int everyRows, long everyMillis) {
+		flushEveryRows = Math.max(0, everyRows);
+		flushIntervalMillis = Math.max(0, everyMillis);
+		stopFlushTimer();
+		if (channel != null)
+			startFlushTimer();
+	}
+	
+	/** Writes any buffered rows to the file.
+	 * Does nothing if this writer is not in persistent mode.
+	 * @return true if all went well, false otherwise.
+	 */
+	public synchronized boolean flush() {
+		if (channel == null)
+			return true;
+		try {
+			encoder.flush();
+			if (index != null)
+				index.flush();	//only after the rows it points to
+			unflushedRows = 0;
+			lastFlushTime = System.currentTimeMillis();
+			return true;
+		} catch (IOException e) {
+			log.error("Failed to flush file", e);
+			return false;
+		}
+	}
+	
+	//Called by the flush timer
+	private synchronized void flushIfDue() {
+		if (channel != null && unflushedRows > 0 && flushIntervalMillis > 0 &&
+				System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis) {
+			flush();
+		}
+	}
+	
+	private void startFlushTimer() {
+		if (!persistent || flushIntervalMillis <= 0 || flushTask != null)
+			return;
+		//check a few times per interval, so no row waits much longer than the interval
+		long period = Math.max(10, flushIntervalMillis / 4);
+		flushTask = new FlushTask(this);
+		flushTask.future = getFlusher().scheduleWithFixedDelay(flushTask, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	private void stopFlushTimer() {
+		if (flushTask == null)
+			return;
+		flushTask.future.cancel(false);
+		flushTask = null;
+	}
+	
+	private static synchronized ScheduledThreadPoolExecutor getFlusher() {
+		if (flusher == null) {
+			flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CSVFileWriter-flusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			flusher.setRemoveOnCancelPolicy(true);
+		}
+		return flusher;
+	}
+	
+	/** Writes any buffered rows to the file and forces them to the storage device.
+	 * Does nothing if this writer is not in persistent mode.
+	 * @return true if all went well, false otherwise.
+	 */
+	public synchronized boolean sync() {
+		if (channel == null)
+			return true;
+		if (!flush())
+			return false;
+		try {
+			channel.force(false);
+			return true;
+		} catch (IOException e) {
+			log.error("Failed to sync file", e);
+			return false;
+		}
+	}
+	
+	/** Flushes any buffered rows and closes the file, and its index if it has one.
+	 * The writer can still be used afterwards; the file is reopened on the next write.
+	 */
+	public synchronized void close() {
+		closeChannel();
+		closeIndex();
+		unwatchFile();
+	}
+	
 	/** Sets the headers for this CSV file.
 	 * @param heads An array of headers.  One element per column.
 	 */
@@ -100,20 +359,191 @@ public class CSVFileWriter {
 			log.error("Error creating file", e);
 		}
 		writeHeaders = true;
+		indexStale = true;
+		fileKey = readFileKey(file);
+		fileBytes = file.length();
+		if (rollingPolicy != null) {
+			rollTime = rollingPolicy.nextRollTime(startTimeOf(file));
+			rollingPolicy.resumeCompression(file);
+		}
 	}
 	
-	/** Writes data to the CSV file.
-	 * Creates the file if it doesn't exist.
-	 * Writes the headers if a new file is created.
-	 * @param values The data to write.
-	 * @return true if all went well, false otherwise.
+	private static Object readFileKey(File f) {
+		try {
+			return Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/* Rather than checking the file before every write, the file's directory is watched
+	 * and the file is only checked when something happened to a file with its name.
+	 * If it was deleted or replaced (by logrotate, say), a new file is started.
 	 */
-	public synchronized boolean writeData(ArrayList<String> values) {
-		boolean ret = false;
-		
+	private void watchFile() {
+		if (watchedPath != null)
+			return;
+		FileWatcher watcher = FileWatcher.getInstance();
+		Path path = file.toPath();
+		if (watcher != null && watcher.register(path, watchListener)) {
+			watchedPath = path;
+			fileChanged = true;	//anything could have happened while we weren't watching
+		}
+	}
+	
+	private void unwatchFile() {
+		if (watchedPath == null)
+			return;
+		FileWatcher watcher = FileWatcher.getInstance();
+		if (watcher != null)
+			watcher.unregister(watchedPath, watchListener);
+		watchedPath = null;
+	}
+	
+	private void checkFile() {
+		fileChanged = false;
+		if (file == null)
+			return;
+		Object key = readFileKey(file);
+		if (key != null && (fileKey == null || key.equals(fileKey)))
+			return;	//still the file we think it is
+		log.info("File "+file.getPath()+" was moved or deleted, starting a new one");
+		closeChannel();
+		closeIndex();
+		unwatchFile();	//its directory might be gone too, watch it again when the new file is made
+		file = null;
+	}
+	
+	//For the time based rolling, a file that already has data is considered to be as old as its last modification
+	private static long startTimeOf(File f) {
+		if (f.length() > 0 && f.lastModified() > 0)
+			return f.lastModified();
+		return System.currentTimeMillis();
+	}
+	
+	private void rollIfNeeded() {
+		if (rollingPolicy == null || file == null)
+			return;
+		long now = System.currentTimeMillis();
+		if (!rollingPolicy.shouldRoll(fileBytes, now, rollTime) || now < rollRetryTime)
+			return;
+		closeChannel();
+		closeIndex();
+		if (file.length() > 0) {
+			File archive = rollingPolicy.roll(file, now);
+			if (archive == null) {
+				//carry on with the same file and try again in a while
+				log.error("Couldn't roll "+file.getPath()+", trying again in "+(ROLL_RETRY_MILLIS/1000)+" seconds");
+				rollRetryTime = now + ROLL_RETRY_MILLIS;
+				indexStale = true;
+				return;
+			}
+			File sidecar = CSVIndex.sidecarFor(file);
+			if (sidecar.exists()) {
+				//The offsets are no use once the file is compressed
+				if (rollingPolicy.isCompress())
+					sidecar.delete();
+				else
+					sidecar.renameTo(CSVIndex.sidecarFor(archive));
+			}
+		}
+		rollRetryTime = 0;
+		unwatchFile();
+		file = null;	//start a new file, headers and all
+	}
+	
+	private void openIndex() {
+		indexStale = false;
+		closeIndex();
+		if (indexInterval <= 0)
+			return;
+		index = new CSVIndex.Appender(file, indexInterval, indexTimestampColumn);
+		try {
+			index.open(fileBytes);
+		} catch (IOException e) {
+			log.error("Failed to open the index for "+file.getPath()+", not indexing it", e);
+			index = null;
+		}
+	}
+	
+	private void closeIndex() {
+		if (index == null)
+			return;
+		try {
+			index.close();
+		} catch (IOException e) {
+			log.error("Failed to close index", e);
+		}
+		index = null;
+	}
+	
+	//Where the next encoded byte will end up in the file
+	private long currentOffset() {
+		return fileBytes + encoder.count() - encodedMark;
+	}
+	
+	private void closeChannel() {
+		stopFlushTimer();
+		if (channel == null)
+			return;
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.error("Failed to close file", e);
+		}
+		channel = null;
+		encoder.setChannel(null);
+	}
+	
+	private boolean openChannel() {
+		if (file == null)
+			initialize();
+		FileOutputStream fos;
+		try {
+			fos = new FileOutputStream(file, true);
+		} catch (IOException e) {
+			log.error("Couldn't get an output stream on the file, trying again.");
+			initialize();
+			try {
+				fos = new FileOutputStream(file, true);
+			} catch (IOException e2) {
+				log.error("Failed to get an output stream on a file. Aborting.", e2);
+				return false;
+			}
+		}
+		channel = fos.getChannel();
+		encoder.setChannel(channel);
+		if (persistent) {
+			try {
+				fileBytes = channel.size();
+			} catch (IOException e) {
+				fileBytes = file.length();
+			}
+		}
+		encodedMark = encoder.count();
+		startFlushTimer();
+		watchFile();
+		if (indexStale)
+			openIndex();
+		unflushedRows = 0;
+		lastFlushTime = System.currentTimeMillis();
+		return true;
+	}
+	
+	/* Every write goes through beginWrite(), then encodes its rows, then calls endWrite().
+	 * In file-per-row mode the file is opened by beginWrite() and closed again by endWrite().
+	 */
+	private boolean beginWrite() {
+		rollIfNeeded();
+		if (fileChanged)
+			checkFile();
+		if (channel != null)
+			return true;
 		if (file == null)
 			initialize();
-		if (!file.canWrite()) {
+		if (watchedPath == null && !persistent && !file.canWrite()) {
+			//Only needed when the file can't be watched
 			log.debug("Can't write to file.");
 			initialize();
 			if (!file.canWrite()) {
@@ -121,68 +551,183 @@ public class CSVFileWriter {
 				return false;
 			}
 		}
-		
-		FileOutputStream fos = null;
-		for (int tryNo = 1; tryNo <=2; tryNo++) {
-			try {
-				fos = new FileOutputStream(file, true);
-			} catch (Exception e) {
-				if (tryNo == 1) {
-					log.error("Couldn't get an output stream on the file, trying again.");
-					initialize();
-				} else if (tryNo == 2) {
-					log.error("Failed to get an output stream on a file. Aborting.");
-					return false;
-				}
+		return openChannel();
+	}
+	
+	private boolean endWrite(int rows) {
+		unflushedRows += rows;
+		long encoded = encoder.count();
+		fileBytes += encoded - encodedMark;
+		encodedMark = encoded;
+		if (!persistent) {
+			boolean ret = flush();
+			closeChannel();
+			return ret;
+		}
+		if ((flushEveryRows > 0 && unflushedRows >= flushEveryRows) ||
+				(flushIntervalMillis > 0 && System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis)) {
+			if (!flush()) {
+				closeChannel();
+				return false;
 			}
 		}
+		return true;
+	}
+	
+	private void abortWrite(Exception e) {
+		log.error("Failed in writing to file", e);
+		encoder.clear();	//don't write out a partial row
+		indexStale = true;	//might have entries for rows that weren't written
+		closeChannel();
+	}
+	
+	private void writeHeadersIfNeeded() throws IOException {
+		if (writeHeaders) {
+			if (index != null)
+				index.row(currentOffset(), headers);
+			encoder.row(headers);
+			writeHeaders = false;
+		}
+	}
+	
+	/** Writes data to the CSV file.
+	 * Creates the file if it doesn't exist.
+	 * Writes the headers if a new file is created.
+	 * In persistent mode the row may be buffered; see {@link #setFlushPolicy(int, long)}.
+	 * @param values The data to write.
+	 * @return true if all went well, false otherwise.
+	 */
+	public synchronized boolean writeData(ArrayList<String> values) {
+		return writeRows(Collections.singletonList(values));
+	}
+	
+	/** Writes several rows to the CSV file at once.
+	 * The rows are encoded together and written with a single write, so this is
+	 * much cheaper than calling {@link #writeData(ArrayList)} once per row.
+	 * Creates the file if it doesn't exist.
+	 * Writes the headers if a new file is created.
+	 * In persistent mode the rows may be buffered; see {@link #setFlushPolicy(int, long)}.
+	 * @param rows The rows to write, one list of values per row.
+	 * @return true if all went well, false otherwise.
+	 */
+	public synchronized boolean writeRows(Iterable<? extends List<String>> rows) {
+		Iterator<? extends List<String>> it = rows.iterator();
+		if (!it.hasNext())
+			return true;
 		
+		if (!beginWrite())
+			return false;
+		
+		int count = 0;
 		try {
-			boolean first = true;
-			if (writeHeaders) {
-				for (String head : headers) {
-					if (!first)
-						fos.write(", ".getBytes());
-					else
-						first = false;
-					writeEscapedCSVData(fos, head);
-				}
-				fos.write(newline);
-				writeHeaders = false;
+			writeHeadersIfNeeded();
+			while (it.hasNext()) {
+				List<String> row = it.next();
+				if (index != null)
+					index.row(currentOffset(), row);
+				encoder.row(row);
+				count++;
 			}
-			first = true;
-			for (String val : values) {
-				if (!first)
-					fos.write(", ".getBytes());
-				else
-					first = false;
-				writeEscapedCSVData(fos, val);
+		} catch (IOException e) {
+			abortWrite(e);
+			return false;
+		}
+		return endWrite(count);
+	}
+	
+	/** Gets the column the index takes its timestamps from, for {@link StripedCSVFileWriter}.
+	 * Doesn't take this writer's monitor, so rows can be encoded elsewhere without waiting on it.
+	 * @return The column, or -1 if there is no index or it has no timestamp column.
+	 */
+	int getIndexTimestampColumn() {
+		int column = indexTimestampColumn;
+		return indexInterval > 0 ? column : -1;
+	}
+	
+	/** Writes rows that were encoded elsewhere, for {@link StripedCSVFileWriter}.
+	 * Headers are written first if needed, as for any other write.
+	 * If the timestamps didn't come from the index's column (it was changed since, say),
+	 * the index is closed and caught up from the file the next time it is opened.
+	 * @param data The encoded rows, from the buffer's position to its limit.
+	 * @param rowEnds Where each row ends, relative to the buffer's position.
+	 * @param timestamps Each row's value in the timestamp column, or null.
+	 * @param timestampColumn The column the timestamps came from.
+	 * @param rows The number of rows.
+	 * @return true if all went well, false otherwise.
+	 */
+	synchronized boolean writeEncoded(ByteBuffer data, int[] rowEnds, long[] timestamps, int timestampColumn, int rows) {
+		if (rows == 0)
+			return true;
+		if (!beginWrite())
+			return false;
+		
+		try {
+			writeHeadersIfNeeded();
+			if (index != null && index.getTimestampColumn() >= 0 &&
+					(timestamps == null || timestampColumn != index.getTimestampColumn())) {
+				//can't index these rows properly; the next open() reads them back from the file instead
+				closeIndex();
+				indexStale = true;
 			}
-			fos.write(newline);
-			ret = true;
-		} catch (Exception e) {
-			log.error("Failed in writing to file", e);
-			ret = false;
-		} finally {
-			try {
-				fos.close();
-			} catch (IOException e) {
-				log.error("Failed to close output stream",e);
-				ret = false;
+			if (index != null) {
+				long base = currentOffset();
+				int start = 0;
+				for (int i=0; i<rows; i++) {
+					index.row(base + start, index.getTimestampColumn() < 0 ? Long.MIN_VALUE : timestamps[i]);
+					start = rowEnds[i];
+				}
 			}
+			encoder.write(data);
+		} catch (IOException e) {
+			abortWrite(e);
+			return false;
 		}
-		return ret;
+		return endWrite(rows);
+	}
+	
+	/** Creates an encoder that encodes rows the same way as this writer.
+	 * @param capacity The initial size of the encoder's buffer.
+	 * @return The new encoder.
+	 */
+	CSVEncoder newEncoder(int capacity) {
+		return new CSVEncoder(capacity, newline);
 	}
-	private void writeEscapedCSVData(OutputStream o, String data) throws IOException {
-		//If there is a comma in the data, then we need to enclose it in double quotes.
-		//But, then if there is a double quote in there, we need to replace it with double doublequotes.
-		if (data.contains(",")) {
-			if (data.contains("\"")) {
-				data = data.replace("\"", "\"\"");
+	
+	/** Writes a row of numbers to the CSV file without converting them to strings first.
+	 * The timestamp is written as a whole number in the first column and the values
+	 * follow, formatted as by {@link Double#toString(double)}.
+	 * Creates the file if it doesn't exist.
+	 * Writes the headers if a new file is created.
+	 * In persistent mode the row may be buffered; see {@link #setFlushPolicy(int, long)}.
+	 * @param timestamp The value for the first column, typically a time in milliseconds.
+	 * @param values The values for the remaining columns.
+	 * @return true if all went well, false otherwise.
+	 */
+	public synchronized boolean writeRow(long timestamp, double... values) {
+		if (!beginWrite())
+			return false;
+		
+		try {
+			writeHeadersIfNeeded();
+			if (index != null) {
+				int column = index.getTimestampColumn();
+				long ts = Long.MIN_VALUE;
+				if (column == 0)
+					ts = timestamp;
+				else if (column > 0 && column <= values.length)
+					ts = (long)values[column - 1];
+				index.row(currentOffset(), ts);
 			}
-			o.write(("\""+data+"\"").getBytes());
-		} else {
-			o.write(data.getBytes());
+			encoder.field(timestamp);
+			for (int i=0; i<values.length; i++) {
+				encoder.separator();
+				encoder.field(values[i]);
+			}
+			encoder.newline();
+		} catch (IOException e) {
+			abortWrite(e);
+			return false;
 		}
+		return endWrite(1);
 	}
 }
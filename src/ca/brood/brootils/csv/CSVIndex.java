@@ -0,0 +1,423 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/** A sparse index of a CSV file, kept in a sidecar file next to it.
+ * <p>
+ * Every Nth row of the CSV file gets an entry with its row number, the byte offset
+ * where it starts and, optionally, the value of a timestamp column.  A
+ * {@link CSVFileReader} can use the index to go straight to a row number or a time
+ * without scanning the file from the start, see {@link CSVFileReader#seekToRow(CSVIndex, long)}
+ * and {@link CSVFileReader#seekToTimestamp(CSVIndex, long)}.
+ * <p>
+ * Rows are numbered from 0 at the start of the file and header rows count as rows.
+ * Timestamps must be whole numbers (milliseconds, typically) and must not go down
+ * as the file grows.  The timestamp of every row is looked at, not just the indexed ones,
+ * and each entry gets the latest timestamp of any row up to and including its own.  So
+ * an entry for a row without a timestamp, such as a header written again in the middle
+ * of the file, gets the timestamp of the last row before it that had one, or
+ * {@link Long#MIN_VALUE} if there is none.  That way every row before an entry is
+ * at or before the entry's timestamp.
+ * <p>
+ * The index is written by {@link CSVFileWriter} when it is turned on with
+ * {@link CSVFileWriter#setIndex(int, int)}.  An index can also be built for an
+ * existing file with {@link #build(File, int, int)}.
+ * @author Charles Hache
+ *
+ */
+public class CSVIndex {
+	/** Appended to the CSV file's name to get the name of its index. */
+	public static final String SUFFIX = ".idx";
+	
+	//"BCSVIDX2"; version 1 indexes could have entries later than the rows after them and are rebuilt
+	private static final long MAGIC = 0x4243535649445832L;
+	private static final int HEADER_BYTES = 16;
+	private static final int ENTRY_BYTES = 24;
+	
+	private final int interval;
+	private final int timestampColumn;
+	private int count;
+	private long[] rows;
+	private long[] offsets;
+	private long[] timestamps;
+	
+	private CSVIndex(int interval, int timestampColumn, int capacity) {
+		this.interval = interval;
+		this.timestampColumn = timestampColumn;
+		this.count = 0;
+		this.rows = new long[Math.max(16, capacity)];
+		this.offsets = new long[rows.length];
+		this.timestamps = new long[rows.length];
+	}
+	
+	/** Gets the index file that goes with a CSV file.
+	 * @param csvFile The CSV file.
+	 * @return The index file.
+	 */
+	public static File sidecarFor(File csvFile) {
+		return new File(csvFile.getPath() + SUFFIX);
+	}
+	
+	/** Loads the index of a CSV file.
+	 * @param csvFile The CSV file (not the index file).
+	 * @return The index.
+	 * @throws IOException If the index file is missing or isn't valid.
+	 */
+	public static CSVIndex load(File csvFile) throws IOException {
+		File sidecar = sidecarFor(csvFile);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+		try {
+			if (in.readLong() != MAGIC)
+				throw new IOException("Not a CSV index, or an old one that needs rebuilding: "+sidecar.getPath());
+			int interval = in.readInt();
+			int timestampColumn = in.readInt();
+			CSVIndex index = new CSVIndex(interval, timestampColumn, (int)((sidecar.length() - HEADER_BYTES) / ENTRY_BYTES));
+			while (true) {
+				long row;
+				try {
+					row = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					index.add(row, in.readLong(), in.readLong());
+				} catch (EOFException e) {
+					break;	//partially written entry at the end
+				}
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/** Scans a CSV file and writes a new index for it, replacing any old one.
+	 * @param csvFile The CSV file.
+	 * @param interval Index every this many rows.
+	 * @param timestampColumn The column holding the timestamp, or -1 for none.
+	 * @return The new index.
+	 * @throws IOException If the file can't be read or the index can't be written.
+	 */
+	public static CSVIndex build(File csvFile, int interval, int timestampColumn) throws IOException {
+		Appender appender = new Appender(csvFile, interval, timestampColumn);
+		appender.rebuild(csvFile.length());
+		appender.close();
+		return load(csvFile);
+	}
+	
+	private void add(long row, long offset, long timestamp) {
+		if (count == rows.length) {
+			int size = count * 2;
+			long[] r = new long[size];
+			long[] o = new long[size];
+			long[] t = new long[size];
+			System.arraycopy(rows, 0, r, 0, count);
+			System.arraycopy(offsets, 0, o, 0, count);
+			System.arraycopy(timestamps, 0, t, 0, count);
+			rows = r;
+			offsets = o;
+			timestamps = t;
+		}
+		rows[count] = row;
+		offsets[count] = offset;
+		timestamps[count] = timestamp;
+		count++;
+	}
+	
+	/** Gets how often rows are indexed.
+	 * @return Every how many rows there is an entry.
+	 */
+	public int getInterval() {
+		return interval;
+	}
+	
+	/** Gets the column the timestamps come from.
+	 * @return The index of the timestamp column, or -1 if there isn't one.
+	 */
+	public int getTimestampColumn() {
+		return timestampColumn;
+	}
+	
+	/** Gets the number of entries in this index.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/** Gets the row number of an entry.
+	 * @param entry The entry.
+	 * @return The row number.
+	 */
+	public long getRow(int entry) {
+		return rows[entry];
+	}
+	
+	/** Gets the byte offset of an entry's row.
+	 * @param entry The entry.
+	 * @return The offset where the row starts.
+	 */
+	public long getOffset(int entry) {
+		return offsets[entry];
+	}
+	
+	/** Gets the timestamp of an entry's row.
+	 * @param entry The entry.
+	 * @return The latest timestamp of the entry's row and the rows before it,
+	 * or {@link Long#MIN_VALUE} if none of them has one.
+	 */
+	public long getTimestamp(int entry) {
+		return timestamps[entry];
+	}
+	
+	/** Finds the last entry at or before a row.
+	 * @param row The row number.
+	 * @return The entry, or -1 if there are no entries at or before the row.
+	 */
+	public int findRow(long row) {
+		int lo = 0;
+		int hi = count - 1;
+		int ret = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (rows[mid] <= row) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+	
+	/** Finds the last entry whose timestamp is before the given time.
+	 * Reading from that entry's row on is guaranteed to reach every row at or after the time.
+	 * Entries from before the first timestamped row count as being before any time.
+	 * @param timestamp The time.
+	 * @return The entry, or -1 if there are no entries before the time.
+	 */
+	public int findTimestamp(long timestamp) {
+		int lo = 0;
+		int hi = count - 1;
+		int ret = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (timestamps[mid] < timestamp) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+	
+	/** Parses a timestamp field, the same way for the writer and the reader.
+	 * Returns Long.MIN_VALUE if it isn't a whole number.
+	 */
+	static long parseTimestamp(String value) {
+		if (value == null)
+			return Long.MIN_VALUE;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+	
+	static long parseTimestamp(CSVRow row, int column) {
+		if (column < 0 || column >= row.size())
+			return Long.MIN_VALUE;
+		try {
+			return row.getLong(column);
+		} catch (NumberFormatException e) {
+			return parseTimestamp(row.getString(column));
+		}
+	}
+	
+	/** Adds entries to the index of a CSV file as the file is written.
+	 * Used by {@link CSVFileWriter}.
+	 */
+	static final class Appender {
+		private final File csvFile;
+		private final File sidecar;
+		private final int interval;
+		private final int timestampColumn;
+		private DataOutputStream out;
+		private long nextRow;
+		//latest timestamp of any row so far, indexed or not
+		private long lastTimestamp;
+		
+		/** Opens the index of a CSV file for appending, creating it if needed. */
+		public Appender(File csvFile, int interval, int timestampColumn) {
+			this.csvFile = csvFile;
+			this.sidecar = sidecarFor(csvFile);
+			this.interval = interval;
+			this.timestampColumn = timestampColumn;
+		}
+		
+		/** Makes sure the index covers the first csvSize bytes of the CSV file, and
+		 * gets ready to add the rows after that.
+		 */
+		public void open(long csvSize) throws IOException {
+			if (csvSize == 0) {
+				rebuild(0);
+				return;
+			}
+			CSVIndex existing = null;
+			try {
+				if (sidecar.exists())
+					existing = load(csvFile);
+			} catch (IOException e) {
+				existing = null;
+			}
+			if (existing == null || existing.interval != interval || existing.timestampColumn != timestampColumn ||
+					(existing.count > 0 && existing.offsets[existing.count - 1] >= csvSize)) {
+				rebuild(csvSize);
+				return;
+			}
+			//The index is good up to its last entry; count the rows after that
+			long row = 0;
+			long pos = 0;
+			if (existing.count > 0) {
+				row = existing.rows[existing.count - 1];
+				pos = existing.offsets[existing.count - 1];
+			}
+			CSVFileReader reader = new CSVFileReader(csvFile);
+			try {
+				long size = Math.min(csvSize, reader.size());
+				CSVRow r = new CSVRow();
+				long entryRow = existing.count > 0 ? row : -1;
+				lastTimestamp = existing.count > 0 ? existing.timestamps[existing.count - 1] : Long.MIN_VALUE;
+				out = openStream(true, (long)existing.count * ENTRY_BYTES + HEADER_BYTES);
+				nextRow = row;
+				while (pos < size) {
+					long next = scan(reader, pos, r);
+					if (nextRow == entryRow)
+						nextRow++;	//already has its entry, and lastTimestamp starts from it
+					else
+						row(pos, parseTimestamp(r, timestampColumn));
+					pos = next;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		
+		/** Throws away any existing index and indexes the first csvSize bytes of the CSV file. */
+		private void rebuild(long csvSize) throws IOException {
+			close();
+			out = openStream(false, 0);
+			out.writeLong(MAGIC);
+			out.writeInt(interval);
+			out.writeInt(timestampColumn);
+			nextRow = 0;
+			lastTimestamp = Long.MIN_VALUE;
+			if (csvSize == 0)
+				return;
+			CSVFileReader reader = new CSVFileReader(csvFile);
+			try {
+				long size = Math.min(csvSize, reader.size());
+				CSVRow r = new CSVRow();
+				long pos = 0;
+				while (pos < size) {
+					long next = scan(reader, pos, r);
+					row(pos, parseTimestamp(r, timestampColumn));
+					pos = next;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		
+		/* Reads the row at pos, only decoding it if there is a timestamp column.  Returns where the next row starts. */
+		private long scan(CSVFileReader reader, long pos, CSVRow r) {
+			if (timestampColumn < 0)
+				return reader.parseRecord(pos, null);	//r is never looked at
+			return reader.readRow(pos, r);
+		}
+		
+		private DataOutputStream openStream(boolean append, long validLength) throws IOException {
+			if (append) {
+				//Drop any partially written entry at the end before appending
+				FileOutputStream fos = new FileOutputStream(sidecar, true);
+				if (fos.getChannel().size() > validLength)
+					fos.getChannel().truncate(validLength);
+				return new DataOutputStream(new BufferedOutputStream(fos));
+			}
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar, false)));
+		}
+		
+		private void write(long row, long offset, long timestamp) throws IOException {
+			out.writeLong(row);
+			out.writeLong(offset);
+			out.writeLong(timestamp);
+		}
+		
+		public int getTimestampColumn() {
+			return timestampColumn;
+		}
+		
+		/** Records that a row was written at the given offset.
+		 * Every row must be recorded with its timestamp, or {@link Long#MIN_VALUE} if it has none,
+		 * not only the ones that get an entry.
+		 */
+		public void row(long offset, long timestamp) throws IOException {
+			//rows without a timestamp (headers) take the latest one before them, so the entries stay sorted
+			if (timestamp > lastTimestamp)
+				lastTimestamp = timestamp;
+			if (nextRow % interval == 0)
+				write(nextRow, offset, lastTimestamp);
+			nextRow++;
+		}
+		
+		/** Records that a row was written at the given offset, taking the timestamp from its values. */
+		public void row(long offset, List<String> values) throws IOException {
+			long timestamp = Long.MIN_VALUE;
+			if (timestampColumn >= 0 && timestampColumn < values.size())
+				timestamp = parseTimestamp(values.get(timestampColumn));
+			row(offset, timestamp);
+		}
+		
+		public void flush() throws IOException {
+			if (out != null)
+				out.flush();
+		}
+		
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+}
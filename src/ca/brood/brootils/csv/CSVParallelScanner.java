@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Scans a file from a {@link CSVFileReader} on several threads at once.
+ * <p>
+ * The file is cut into byte ranges that each start at the beginning of a row.
+ * Finding those starts is done in parallel too: each range guesses that its first
+ * row starts after the first newline it sees and skips over its rows from there.
+ * A guess is only kept if the previous range ended exactly where the guess was;
+ * otherwise (a newline inside a quoted field, for example) that range is scanned
+ * again from the right place.  The ranges are then processed on a {@link ForkJoinPool},
+ * either by {@link #mapReduce(Supplier, BiConsumer, BinaryOperator)} or as a parallel
+ * {@link Stream} from {@link #rows()}.
+ * @author Charles Hache
+ *
+ */
+public class CSVParallelScanner {
+	private static final long DEFAULT_MIN_RANGE_BYTES = 1024*1024;
+	
+	private final CSVFileReader reader;
+	private ForkJoinPool pool;
+	private long minRangeBytes;
+	private boolean skipFirstRow;
+	
+	/** Creates a scanner for the file of the given reader, using the common fork/join pool.
+	 * @param reader The reader of the file to scan.
+	 */
+	public CSVParallelScanner(CSVFileReader reader) {
+		this.reader = reader;
+		this.pool = ForkJoinPool.commonPool();
+		this.minRangeBytes = DEFAULT_MIN_RANGE_BYTES;
+		this.skipFirstRow = false;
+	}
+	
+	/** Sets the pool to scan with.
+	 * @param pool The fork/join pool.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/** Sets the smallest range worth handing to a thread of its own.
+	 * @param bytes The minimum size of a range in bytes.
+	 */
+	public void setMinRangeBytes(long bytes) {
+		this.minRangeBytes = Math.max(1, bytes);
+	}
+	
+	/** Sets whether the first row of the file is skipped, as it is when the file has headers.
+	 * @param skip true to skip the first row.
+	 */
+	public void setSkipFirstRow(boolean skip) {
+		this.skipFirstRow = skip;
+	}
+	
+	/** Cuts the file into ranges that start and end on row boundaries.
+	 * @param parts The number of ranges to aim for.  Fewer are returned for small files.
+	 * @return The boundaries of the ranges: range i is from element i to element i+1.
+	 * The first element is the start of the first row that will be scanned, and the last is the size of the file.
+	 */
+	public long[] split(int parts) {
+		long start = skipFirstRow ? reader.parseRecord(0, null) : 0;
+		long size = reader.size();
+		long length = size - start;
+		parts = (int)Math.max(1, Math.min(parts, length / minRangeBytes));
+		
+		final long[] nominal = new long[parts + 1];
+		for (int i=0; i<=parts; i++)
+			nominal[i] = start + length * i / parts;
+		
+		//Speculatively find the end of every range, all at once
+		List<RecursiveTask<long[]>> tasks = new ArrayList<RecursiveTask<long[]>>();
+		for (int i=0; i<parts; i++) {
+			final int index = i;
+			tasks.add(new RecursiveTask<long[]>() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected long[] compute() {
+					long guess = index == 0 ? nominal[0] : nextLineStart(nominal[index]);
+					return new long[] {guess, skipRows(guess, nominal[index + 1])};
+				}
+			});
+		}
+		for (RecursiveTask<long[]> task : tasks)
+			pool.execute(task);
+		
+		//Then keep the guesses that line up and redo the ones that don't
+		long[] bounds = new long[parts + 1];
+		int count = 0;
+		long boundary = start;
+		bounds[count++] = boundary;
+		for (int i=0; i<parts; i++) {
+			long[] guess = tasks.get(i).join();
+			long end = guess[0] == boundary ? guess[1] : skipRows(boundary, nominal[i + 1]);
+			if (end > boundary) {
+				bounds[count++] = end;
+				boundary = end;
+			}
+		}
+		if (bounds[count - 1] != size)
+			bounds[count++] = size;
+		long[] ret = new long[count];
+		System.arraycopy(bounds, 0, ret, 0, count);
+		return ret;
+	}
+	
+	/** Streams all the rows of the file in parallel.
+	 * Each row in the stream is its own object.  The stream runs in whatever pool its
+	 * terminal operation is called from, so to use this scanner's pool call it from
+	 * within a task submitted to that pool.
+	 * @return A parallel stream of the rows.
+	 */
+	public Stream<CSVRow> rows() {
+		return StreamSupport.stream(new RangeSpliterator(split(pool.getParallelism() * 4)), true);
+	}
+	
+	/** Runs a map/reduce over all the rows of the file on this scanner's pool.
+	 * Each range gets its own accumulator from the supplier, all of the range's rows
+	 * are folded into it, and the accumulators are then combined.
+	 * The row passed to the accumulator function is reused for the next row; use
+	 * {@link CSVRow#copy()} to keep it.
+	 * @param supplier Creates an empty accumulator.
+	 * @param accumulator Folds a row into an accumulator.
+	 * @param combiner Combines two accumulators.
+	 * @return The combined result.
+	 */
+	public <A> A mapReduce(Supplier<A> supplier, BiConsumer<A, CSVRow> accumulator, BinaryOperator<A> combiner) {
+		long[] bounds = split(pool.getParallelism() * 4);
+		return pool.invoke(new RangeTask<A>(bounds, 0, bounds.length - 1, supplier, accumulator, combiner));
+	}
+	
+	private long nextLineStart(long pos) {
+		long size = reader.size();
+		if (pos == 0)
+			return 0;
+		//the byte before pos might be a newline already
+		pos--;
+		while (pos < size && reader.byteAt(pos) != '\n')
+			pos++;
+		return Math.min(pos + 1, size);
+	}
+	
+	//Returns the start of the first row at or after end
+	private long skipRows(long pos, long end) {
+		while (pos < end)
+			pos = reader.parseRecord(pos, null);
+		return pos;
+	}
+	
+	private class RangeTask<A> extends RecursiveTask<A> {
+		private static final long serialVersionUID = 1L;
+		private final long[] bounds;
+		private final int from;
+		private final int to;
+		private final Supplier<A> supplier;
+		private final BiConsumer<A, CSVRow> accumulator;
+		private final BinaryOperator<A> combiner;
+		
+		public RangeTask(long[] bounds, int from, int to, Supplier<A> supplier, BiConsumer<A, CSVRow> accumulator, BinaryOperator<A> combiner) {
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+			this.supplier = supplier;
+			this.accumulator = accumulator;
+			this.combiner = combiner;
+		}
+		
+		@Override
+		protected A compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				RangeTask<A> left = new RangeTask<A>(bounds, from, mid, supplier, accumulator, combiner);
+				RangeTask<A> right = new RangeTask<A>(bounds, mid, to, supplier, accumulator, combiner);
+				left.fork();
+				A r = right.compute();
+				return combiner.apply(left.join(), r);
+			}
+			A result = supplier.get();
+			CSVRow row = new CSVRow();
+			long pos = bounds[from];
+			long end = bounds[to];
+			while (pos < end) {
+				pos = reader.readRow(pos, row);
+				accumulator.accept(result, row);
+			}
+			return result;
+		}
+	}
+	
+	private class RangeSpliterator implements Spliterator<CSVRow> {
+		private final long[] bounds;
+		private int from;
+		private final int to;
+		private long pos;
+		
+		public RangeSpliterator(long[] bounds) {
+			this(bounds, 0, bounds.length - 1);
+		}
+		
+		private RangeSpliterator(long[] bounds, int from, int to) {
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+			this.pos = bounds[from];
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super CSVRow> action) {
+			if (pos >= bounds[to])
+				return false;
+			CSVRow row = new CSVRow();
+			pos = reader.readRow(pos, row);
+			action.accept(row);
+			return true;
+		}
+		
+		@Override
+		public Spliterator<CSVRow> trySplit() {
+			//Only split ranges that haven't been started on yet
+			if (to - from < 2 || pos != bounds[from])
+				return null;
+			int mid = (from + to) >>> 1;
+			RangeSpliterator prefix = new RangeSpliterator(bounds, from, mid);
+			from = mid;
+			pos = bounds[mid];
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return bounds[to] - pos;	//bytes, not rows, but good enough for splitting decisions
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+	}
+}
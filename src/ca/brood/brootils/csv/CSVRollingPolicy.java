@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** Describes when a {@link CSVFileWriter} should roll its file over, and what to do with the old file.
+ * <p>
+ * A file is rolled when it has grown to at least the maximum size, or when the wall clock
+ * passes the end of the current interval.  Intervals are aligned to local time, so
+ * an interval of one day rolls at midnight and one hour rolls at the top of the hour.
+ * <p>
+ * When a file is rolled it is renamed according to the file pattern, and then optionally
+ * gzipped on a background thread.  The writer then carries on with a fresh file under
+ * its original name, headers included.  The pattern can contain:
+ * <ul>
+ * <li><code>%f</code> - the writer's filename</li>
+ * <li><code>%d{format}</code> - the time of the roll, formatted with {@link SimpleDateFormat}</li>
+ * <li><code>%d</code> - the same, using <code>yyyyMMdd-HHmmss</code></li>
+ * <li><code>%i</code> - a counter that is increased until the name is not already taken</li>
+ * </ul>
+ * If the pattern has no <code>%i</code> and the name is taken, a counter is added to the end.
+ * The default pattern is <code>%f.%d</code>.
+ * <p>
+ * Files are gzipped to a <code>.gz.part</code> file that is only renamed to <code>.gz</code>
+ * once it is complete.  If the JVM exits part way through, the writer that next opens a file
+ * under this policy deletes the partial file and compresses the rolled file again.
+ * @author Charles Hache
+ *
+ */
+public class CSVRollingPolicy {
+	private static final String DEFAULT_PATTERN = "%f.%d";
+	private static final String DEFAULT_DATE_FORMAT = "yyyyMMdd-HHmmss";
+	
+	private static final String PART_SUFFIX = ".gz.part";
+	private static ExecutorService compressor = null;
+	//.gz.part files being written right now, so they aren't mistaken for leftovers
+	private static final Set<String> compressing = new HashSet<String>();
+	
+	private final long maxBytes;
+	private final long intervalMillis;
+	private final String filePattern;
+	private final boolean compress;
+	private final Set<String> checkedDirectories = new HashSet<String>();
+	private Logger log;
+	
+	/** Creates a rolling policy that gzips rolled files.
+	 * @param maxBytes Roll once the file is at least this big, or 0 to not roll by size.
+	 * @param intervalMillis Roll at the end of each interval of this length, or 0 to not roll by time.
+	 * @param filePattern The pattern to rename rolled files to, or null for the default.
+	 */
+	public CSVRollingPolicy(long maxBytes, long intervalMillis, String filePattern) {
+		this(maxBytes, intervalMillis, filePattern, true);
+	}
+	
+	/** Creates a rolling policy.
+	 * @param maxBytes Roll once the file is at least this big, or 0 to not roll by size.
+	 * @param intervalMillis Roll at the end of each interval of this length, or 0 to not roll by time.
+	 * @param filePattern The pattern to rename rolled files to, or null for the default.
+	 * @param compress true to gzip rolled files in the background.
+	 */
+	public CSVRollingPolicy(long maxBytes, long intervalMillis, String filePattern, boolean compress) {
+		log = LogManager.getLogger(CSVRollingPolicy.class);
+		this.maxBytes = Math.max(0, maxBytes);
+		this.intervalMillis = Math.max(0, intervalMillis);
+		this.filePattern = filePattern == null ? DEFAULT_PATTERN : filePattern;
+		this.compress = compress;
+	}
+	
+	/** Gets the size at which files are rolled.
+	 * @return The size in bytes, or 0 if this policy doesn't roll by size.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/** Gets the length of the intervals that files are rolled at the end of.
+	 * @return The interval in milliseconds, or 0 if this policy doesn't roll by time.
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+	
+	/** Gets the pattern that rolled files are renamed to.
+	 * @return The pattern.
+	 */
+	public String getFilePattern() {
+		return filePattern;
+	}
+	
+	/** Checks whether rolled files are gzipped.
+	 * @return true if rolled files are gzipped in the background.
+	 */
+	public boolean isCompress() {
+		return compress;
+	}
+	
+	/** Works out when a file that was started at the given time should be rolled.
+	 * @param startTime The time the file was started, in milliseconds.
+	 * @return The time to roll the file at, or {@link Long#MAX_VALUE} if this policy doesn't roll by time.
+	 */
+	long nextRollTime(long startTime) {
+		if (intervalMillis <= 0)
+			return Long.MAX_VALUE;
+		long offset = TimeZone.getDefault().getOffset(startTime);
+		long localStart = startTime + offset;
+		return localStart - (localStart % intervalMillis) + intervalMillis - offset;
+	}
+	
+	/** Checks whether a file should be rolled.
+	 * @param fileBytes The current size of the file.
+	 * @param now The current time.
+	 * @param rollTime The time returned by {@link #nextRollTime(long)} for the file.
+	 * @return true if the file should be rolled.
+	 */
+	boolean shouldRoll(long fileBytes, long now, long rollTime) {
+		if (maxBytes > 0 && fileBytes >= maxBytes)
+			return true;
+		return now >= rollTime;
+	}
+	
+	/** Renames the given file according to the pattern and compresses it in the background if required.
+	 * @param active The file to roll.
+	 * @param now The time of the roll.
+	 * @return The file it was renamed to, or null if it couldn't be renamed.
+	 */
+	File roll(File active, long now) {
+		File archive = archiveFile(active.getPath(), now);
+		if (!active.renameTo(archive)) {
+			log.error("Failed to rename "+active.getPath()+" to "+archive.getPath());
+			return null;
+		}
+		log.debug("Rolled "+active.getPath()+" to "+archive.getPath());
+		if (compress)
+			compressInBackground(archive);
+		return archive;
+	}
+	
+	/** Finishes compressing files that were rolled into the same directory as the given file's
+	 * archives, but not compressed because the JVM exited first.  Each directory is only checked once.
+	 * @param active The file being written.
+	 */
+	void resumeCompression(File active) {
+		if (!compress)
+			return;
+		File dir = new File(expand(active.getPath(), System.currentTimeMillis(), 0)).getAbsoluteFile().getParentFile();
+		if (dir == null)
+			return;
+		synchronized (checkedDirectories) {
+			if (!checkedDirectories.add(dir.getPath()))
+				return;
+		}
+		File[] parts = dir.listFiles();
+		if (parts == null)
+			return;
+		for (File part : parts) {
+			String name = part.getPath();
+			if (!name.endsWith(PART_SUFFIX))
+				continue;
+			synchronized (compressing) {
+				if (compressing.contains(name))
+					continue;
+			}
+			File source = new File(name.substring(0, name.length() - PART_SUFFIX.length()));
+			log.info("Removing partly compressed "+name);
+			part.delete();
+			if (source.exists() && !new File(source.getPath() + ".gz").exists())
+				compressInBackground(source);
+		}
+	}
+	
+	private File archiveFile(String filename, long now) {
+		boolean hasIndex = filePattern.contains("%i");
+		for (int index = 0; ; index++) {
+			String name = expand(filename, now, index);
+			if (!hasIndex && index > 0)
+				name += "." + index;
+			File f = new File(name);
+			if (!f.exists() && !(compress && new File(name + ".gz").exists()))
+				return f;
+		}
+	}
+	
+	private String expand(String filename, long now, int index) {
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (i < filePattern.length()) {
+			char c = filePattern.charAt(i);
+			if (c != '%' || i + 1 >= filePattern.length()) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			char token = filePattern.charAt(i + 1);
+			i += 2;
+			if (token == 'f') {
+				sb.append(filename);
+			} else if (token == 'i') {
+				sb.append(index);
+			} else if (token == 'd') {
+				String format = DEFAULT_DATE_FORMAT;
+				if (i < filePattern.length() && filePattern.charAt(i) == '{') {
+					int end = filePattern.indexOf('}', i);
+					if (end > i) {
+						format = filePattern.substring(i + 1, end);
+						i = end + 1;
+					}
+				}
+				sb.append(new SimpleDateFormat(format).format(new Date(now)));
+			} else {
+				sb.append('%').append(token);
+			}
+		}
+		return sb.toString();
+	}
+	
+	private void compressInBackground(final File archive) {
+		getCompressor().execute(new Runnable() {
+			@Override
+			public void run() {
+				gzip(archive);
+			}
+		});
+	}
+	
+	private void gzip(File source) {
+		File target = new File(source.getPath() + ".gz");
+		File part = new File(source.getPath() + PART_SUFFIX);
+		synchronized (compressing) {
+			compressing.add(part.getPath());
+		}
+		InputStream in = null;
+		OutputStream out = null;
+		boolean ok = false;
+		try {
+			in = new FileInputStream(source);
+			out = new GZIPOutputStream(new FileOutputStream(part), 64*1024);
+			byte[] buf = new byte[64*1024];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			out.close();
+			out = null;
+			ok = part.renameTo(target);
+			if (!ok)
+				log.error("Failed to rename "+part.getPath()+" to "+target.getPath());
+		} catch (IOException e) {
+			log.error("Failed to compress "+source.getPath(), e);
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				log.error("Failed to close streams", e);
+			}
+		}
+		if (ok) {
+			if (!source.delete())
+				log.error("Failed to delete "+source.getPath()+" after compressing it");
+		} else {
+			part.delete();
+		}
+		synchronized (compressing) {
+			compressing.remove(part.getPath());
+		}
+	}
+	
+	private static synchronized ExecutorService getCompressor() {
+		if (compressor == null) {
+			compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CSVRollingPolicy-compressor");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return compressor;
+	}
+}
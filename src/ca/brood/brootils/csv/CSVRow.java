@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.nio.charset.Charset;
+
+/** One row read by a {@link CSVFileReader}.
+ * The row doesn't hold any data itself, just the byte offsets of its fields in the
+ * reader's mapping of the file.  A field is only decoded when it is asked for, and
+ * a row can be reused for many reads to avoid creating garbage.
+ * <p>
+ * A row is only valid for as long as the reader that filled it is open.
+ * @author Charles Hache
+ *
+ */
+public class CSVRow {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private CSVFileReader reader;
+	private long rowStart;
+	private long rowEnd;
+	private int count;
+	private long[] starts;
+	private long[] ends;
+	private boolean[] quoted;
+	
+	/** Creates an empty row, ready to be filled by {@link CSVFileReader#readRow(CSVRow)}.
+	 */
+	public CSVRow() {
+		starts = new long[16];
+		ends = new long[16];
+		quoted = new boolean[16];
+	}
+	
+	void clear(CSVFileReader reader, long rowStart) {
+		this.reader = reader;
+		this.rowStart = rowStart;
+		this.rowEnd = rowStart;
+		this.count = 0;
+	}
+	
+	void addField(long start, long end, boolean isQuoted) {
+		if (count == starts.length) {
+			int size = count * 2;
+			long[] s = new long[size];
+			long[] e = new long[size];
+			boolean[] q = new boolean[size];
+			System.arraycopy(starts, 0, s, 0, count);
+			System.arraycopy(ends, 0, e, 0, count);
+			System.arraycopy(quoted, 0, q, 0, count);
+			starts = s;
+			ends = e;
+			quoted = q;
+		}
+		starts[count] = start;
+		ends[count] = end;
+		quoted[count] = isQuoted;
+		count++;
+	}
+	
+	void setRowEnd(long rowEnd) {
+		this.rowEnd = rowEnd;
+	}
+	
+	/** Makes an independent copy of this row, for when the row is going to be reused.
+	 * @return The copy.
+	 */
+	public CSVRow copy() {
+		CSVRow c = new CSVRow();
+		c.clear(reader, rowStart);
+		for (int i=0; i<count; i++)
+			c.addField(starts[i], ends[i], quoted[i]);
+		c.rowEnd = rowEnd;
+		return c;
+	}
+	
+	/** Gets the number of fields in this row.
+	 * @return The number of fields.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/** Gets the offset in the file where this row starts.
+	 * @return The byte offset of the first byte of the row.
+	 */
+	public long getRowStart() {
+		return rowStart;
+	}
+	
+	/** Gets the offset in the file just past the end of this row, newline included.
+	 * This is where the next row starts.
+	 * @return The byte offset after the row.
+	 */
+	public long getRowEnd() {
+		return rowEnd;
+	}
+	
+	/** Gets the offset in the file where a field's data starts.
+	 * For quoted fields this is just past the opening quote.
+	 * @param i The index of the field.
+	 * @return The byte offset of the field's first byte.
+	 */
+	public long getStart(int i) {
+		check(i);
+		return starts[i];
+	}
+	
+	/** Gets the offset in the file just past the end of a field's data.
+	 * For quoted fields this is the offset of the closing quote.
+	 * @param i The index of the field.
+	 * @return The byte offset after the field's last byte.
+	 */
+	public long getEnd(int i) {
+		check(i);
+		return ends[i];
+	}
+	
+	/** Checks whether a field was enclosed in quotes.
+	 * Doubled quotes inside quoted fields are only undone when the field is decoded.
+	 * @param i The index of the field.
+	 * @return true if the field was quoted.
+	 */
+	public boolean isQuoted(int i) {
+		check(i);
+		return quoted[i];
+	}
+	
+	/** Checks whether a field is empty.
+	 * @param i The index of the field.
+	 * @return true if the field has no data.
+	 */
+	public boolean isEmpty(int i) {
+		check(i);
+		return starts[i] == ends[i];
+	}
+	
+	/** Decodes a field as a string.
+	 * @param i The index of the field.
+	 * @return The field's value.
+	 */
+	public String getString(int i) {
+		check(i);
+		long start = starts[i];
+		int len = (int)(ends[i] - start);
+		byte[] bytes = new byte[len];
+		reader.copy(start, bytes, 0, len);
+		if (quoted[i]) {
+			//undo the doubled quotes
+			int out = 0;
+			for (int in = 0; in < len; in++) {
+				bytes[out++] = bytes[in];
+				if (bytes[in] == '"' && in + 1 < len && bytes[in + 1] == '"')
+					in++;
+			}
+			len = out;
+		}
+		return new String(bytes, 0, len, UTF8);
+	}
+	
+	/** Parses a field as a whole number without decoding it to a string first.
+	 * @param i The index of the field.
+	 * @return The field's value.
+	 * @throws NumberFormatException If the field isn't a whole number.
+	 */
+	public long getLong(int i) {
+		check(i);
+		long pos = starts[i];
+		long end = ends[i];
+		if (pos == end)
+			throw new NumberFormatException("Empty field");
+		boolean negative = false;
+		byte b = reader.byteAt(pos);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			pos++;
+			if (pos == end)
+				throw new NumberFormatException(getString(i));
+		}
+		long value = 0;
+		for (; pos < end; pos++) {
+			b = reader.byteAt(pos);
+			if (b < '0' || b > '9')
+				throw new NumberFormatException(getString(i));
+			long next = value * 10 - (b - '0');	//accumulate negatively so Long.MIN_VALUE fits
+			if (value < Long.MIN_VALUE / 10 || next > value)
+				throw new NumberFormatException(getString(i));
+			value = next;
+		}
+		if (negative)
+			return value;
+		if (value == Long.MIN_VALUE)
+			throw new NumberFormatException(getString(i));
+		return -value;
+	}
+	
+	/** Parses a field as a decimal number.
+	 * @param i The index of the field.
+	 * @return The field's value.
+	 * @throws NumberFormatException If the field isn't a number.
+	 */
+	public double getDouble(int i) {
+		return Double.parseDouble(getString(i));
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<count; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(getString(i));
+		}
+		return sb.toString();
+	}
+	
+	private void check(int i) {
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("Field "+i+" of "+count);
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** Tells interested parties when a file is deleted, renamed away or replaced.
+ * One {@link WatchService} and one daemon thread are shared by everyone.
+ * The callbacks run on that thread, so they should just set a flag.
+ * <p>
+ * Listeners are only held weakly, so a listener that nobody else refers to anymore
+ * is dropped, and its directory is no longer watched once it has no listeners left.
+ * Whoever registers a listener must keep a reference to it for as long as it should be called.
+ * @author Charles Hache
+ *
+ */
+final class FileWatcher implements Runnable {
+	private static FileWatcher instance = null;
+	private static final long PURGE_SECONDS = 30;
+	
+	private static final class Listener extends WeakReference<Runnable> {
+		private final Path file;
+		
+		public Listener(Path file, Runnable listener, ReferenceQueue<Runnable> queue) {
+			super(listener, queue);
+			this.file = file;
+		}
+	}
+	
+	private Logger log;
+	private final WatchService service;
+	private final Map<WatchKey, Path> directories;
+	private final Map<Path, Map<Path, List<Listener>>> listeners;
+	private final ReferenceQueue<Runnable> collected;
+	
+	private FileWatcher() throws IOException {
+		log = LogManager.getLogger(FileWatcher.class);
+		service = FileSystems.getDefault().newWatchService();
+		directories = new HashMap<WatchKey, Path>();
+		listeners = new HashMap<Path, Map<Path, List<Listener>>>();
+		collected = new ReferenceQueue<Runnable>();
+		Thread t = new Thread(this, "FileWatcher");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/** Gets the shared watcher, starting it if needed.
+	 * @return The watcher, or null if the file system can't be watched.
+	 */
+	public static synchronized FileWatcher getInstance() {
+		if (instance == null) {
+			try {
+				instance = new FileWatcher();
+			} catch (IOException e) {
+				LogManager.getLogger(FileWatcher.class).warn("File watching isn't available", e);
+			}
+		}
+		return instance;
+	}
+	
+	/** Starts watching a file.
+	 * The listener is only held weakly; see the class description.
+	 * @param file The file to watch.
+	 * @param listener Called when the file is deleted, renamed away or created again.
+	 * @return true if the file is being watched, false if it can't be.
+	 */
+	public synchronized boolean register(Path file, Runnable listener) {
+		purge();
+		file = file.toAbsolutePath();
+		Path dir = file.getParent();
+		if (dir == null)
+			return false;
+		Map<Path, List<Listener>> files = listeners.get(dir);
+		if (files == null) {
+			try {
+				WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_CREATE);
+				directories.put(key, dir);
+			} catch (IOException e) {
+				log.warn("Can't watch "+dir, e);
+				return false;
+			}
+			files = new HashMap<Path, List<Listener>>();
+			listeners.put(dir, files);
+		}
+		List<Listener> list = files.get(file.getFileName());
+		if (list == null) {
+			list = new ArrayList<Listener>();
+			files.put(file.getFileName(), list);
+		}
+		for (Listener l : list) {
+			if (l.get() == listener)
+				return true;
+		}
+		list.add(new Listener(file, listener, collected));
+		return true;
+	}
+	
+	/** Stops watching a file for the given listener.
+	 * @param file The file.
+	 * @param listener The listener that was registered for it.
+	 */
+	public synchronized void unregister(Path file, Runnable listener) {
+		purge();
+		remove(file.toAbsolutePath(), listener);
+	}
+	
+	/* Removes the listener, and any that have been collected, from a file.
+	 * Stops watching the directory if that was the last of its listeners.  Must hold the lock.
+	 */
+	private void remove(Path file, Runnable listener) {
+		Path dir = file.getParent();
+		Map<Path, List<Listener>> files = listeners.get(dir);
+		if (files == null)
+			return;
+		List<Listener> list = files.get(file.getFileName());
+		if (list == null)
+			return;
+		Iterator<Listener> it = list.iterator();
+		while (it.hasNext()) {
+			Runnable r = it.next().get();
+			if (r == null || r == listener)
+				it.remove();
+		}
+		if (list.isEmpty())
+			files.remove(file.getFileName());
+		if (files.isEmpty()) {
+			listeners.remove(dir);
+			for (Map.Entry<WatchKey, Path> e : directories.entrySet()) {
+				if (e.getValue().equals(dir)) {
+					e.getKey().cancel();
+					directories.remove(e.getKey());
+					break;
+				}
+			}
+		}
+	}
+	
+	//Drops the listeners that have been garbage collected.  Must hold the lock.
+	private void purge() {
+		Listener l;
+		while ((l = (Listener) collected.poll()) != null) {
+			remove(l.file, null);
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				//wake up now and then to stop watching for listeners that were collected
+				key = service.poll(PURGE_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			List<Listener> toNotify = new ArrayList<Listener>();
+			synchronized (this) {
+				purge();
+				if (key == null)
+					continue;
+				Path dir = directories.get(key);
+				Map<Path, List<Listener>> files = dir == null ? null : listeners.get(dir);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (files == null)
+						continue;
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						//lost track; tell everyone in this directory
+						for (List<Listener> list : files.values())
+							toNotify.addAll(list);
+					} else {
+						List<Listener> list = files.get((Path)event.context());
+						if (list != null)
+							toNotify.addAll(list);
+					}
+				}
+				if (!key.reset()) {
+					//The directory itself is gone
+					if (files != null) {
+						for (List<Listener> list : files.values())
+							toNotify.addAll(list);
+						listeners.remove(dir);
+					}
+					directories.remove(key);
+				}
+			}
+			for (Listener l : toNotify) {
+				Runnable r = l.get();
+				if (r == null)
+					continue;
+				try {
+					r.run();
+				} catch (RuntimeException e) {
+					log.error("File watch listener failed", e);
+				}
+			}
+		}
+	}
+}
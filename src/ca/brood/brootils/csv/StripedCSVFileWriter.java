@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** Lets many threads write to one {@link CSVFileWriter} without all of them waiting on its monitor for every row.
+ * <p>
+ * Each thread encodes its rows into a buffer of its own (a stripe).  Only when a
+ * stripe has filled a segment does it take the writer's monitor, and then it
+ * writes the whole segment at once.  Rows from one thread stay in order, but rows
+ * from different threads are interleaved a segment at a time.
+ * <p>
+ * Optionally the rows can be ordered by a timestamp column instead.  Then, whenever
+ * any stripe fills up, the rows of all the stripes are merged by timestamp and written
+ * together.  The merge assumes each thread writes its own rows in timestamp order, and
+ * only orders rows within one merge.
+ * <p>
+ * If the writer has an index (see {@link CSVFileWriter#setIndex(int, int)}), each row's
+ * value in the index's timestamp column is worked out as the row is encoded and passed on with it.
+ * <p>
+ * Rows sit in the stripes until a segment fills up or {@link #flush()} is called.
+ * A stripe whose thread has ended is dropped once its rows have been written, so
+ * thread pools that replace their threads don't leave buffers behind.
+ * The wrapped writer is put into persistent mode and is owned by this object
+ * from then on; don't write to it directly.
+ * @author Charles Hache
+ *
+ */
+public class StripedCSVFileWriter {
+	private class Stripe {
+		private final ReentrantLock lock;
+		private final Thread owner;
+		private final CSVEncoder encoder;
+		private int rows;
+		private int[] ends;
+		private long[] timestamps;
+		private long[] indexTimestamps;
+		private int indexColumn;
+		
+		public Stripe() {
+			lock = new ReentrantLock();
+			owner = Thread.currentThread();
+			encoder = writer.newEncoder(segmentBytes + segmentBytes / 4);
+			ends = new int[256];
+			timestamps = new long[256];
+			indexTimestamps = new long[256];
+		}
+		
+		/* timestamp is from the order column, for merging, and indexTimestamp from the
+		 * writer's index column at the time, for the index.
+		 */
+		private void endRow(long timestamp, long indexTimestamp, int column) {
+			if (rows == ends.length) {
+				int[] e = new int[rows * 2];
+				long[] t = new long[rows * 2];
+				long[] it = new long[rows * 2];
+				System.arraycopy(ends, 0, e, 0, rows);
+				System.arraycopy(timestamps, 0, t, 0, rows);
+				System.arraycopy(indexTimestamps, 0, it, 0, rows);
+				ends = e;
+				timestamps = t;
+				indexTimestamps = it;
+			}
+			if (rows == 0)
+				indexColumn = column;
+			else if (indexColumn != column)
+				indexColumn = MIXED_COLUMNS;	//the index was changed in between
+			ends[rows] = encoder.size();
+			timestamps[rows] = timestamp;
+			indexTimestamps[rows] = indexTimestamp;
+			rows++;
+		}
+		
+		private boolean isFull() {
+			return encoder.size() >= segmentBytes;
+		}
+		
+		//Must hold the stripe's lock
+		private boolean writeOut() {
+			if (rows == 0)
+				return true;
+			ByteBuffer buf = encoder.getBuffer();
+			buf.flip();
+			boolean ret = writer.writeEncoded(buf, ends, indexTimestamps, indexColumn, rows);
+			buf.clear();
+			rows = 0;
+			return ret;
+		}
+		
+		private void clear() {
+			encoder.clear();
+			rows = 0;
+		}
+		
+		//Must hold the stripe's lock.  Drops the stripe if it's empty and its thread won't write to it again.
+		private void dropIfDead() {
+			if (rows == 0 && !owner.isAlive())
+				stripes.remove(this);
+		}
+	}
+	
+	//a batch of rows whose index timestamps came from different columns
+	private static final int MIXED_COLUMNS = -2;
+	
+	private Logger log;
+	private final CSVFileWriter writer;
+	private final int segmentBytes;
+	private final int orderColumn;
+	private final CopyOnWriteArrayList<Stripe> stripes;
+	private final ThreadLocal<Stripe> localStripe;
+	private final Object mergeLock;
+	private CSVEncoder merged;
+	private int[] mergedEnds;
+	private long[] mergedIndexTimestamps;
+	
+	/** Creates a striped writer that interleaves the threads' rows a segment at a time.
+	 * @param writer The writer to write the rows with.  It is switched to persistent mode.
+	 * @param segmentBytes How much each thread buffers before writing.
+	 */
+	public StripedCSVFileWriter(CSVFileWriter writer, int segmentBytes) {
+		this(writer, segmentBytes, -1);
+	}
+	
+	/** Creates a striped writer.
+	 * @param writer The writer to write the rows with.  It is switched to persistent mode.
+	 * @param segmentBytes How much each thread buffers before writing.
+	 * @param orderColumn The column holding a whole number timestamp to order the rows by, or -1 to not order them.
+	 */
+	public StripedCSVFileWriter(CSVFileWriter writer, int segmentBytes, int orderColumn) {
+		log = LogManager.getLogger(StripedCSVFileWriter.class);
+		if (segmentBytes < 1)
+			throw new IllegalArgumentException("Segment size must be at least 1");
+		this.writer = writer;
+		this.segmentBytes = segmentBytes;
+		this.orderColumn = orderColumn < 0 ? -1 : orderColumn;
+		this.stripes = new CopyOnWriteArrayList<Stripe>();
+		this.mergeLock = new Object();
+		this.localStripe = new ThreadLocal<Stripe>() {
+			@Override
+			protected Stripe initialValue() {
+				dropDeadStripes();
+				Stripe s = new Stripe();
+				stripes.add(s);
+				return s;
+			}
+		};
+		writer.setPersistent(true);
+	}
+	
+	/** Writes a row.
+	 * The row is encoded into the calling thread's stripe right away, so the list
+	 * can be reused as soon as this returns.
+	 * @param values The data to write.
+	 * @return true if all went well, false if a segment this call wrote out failed.
+	 */
+	public boolean writeData(List<String> values) {
+		Stripe stripe = localStripe.get();
+		boolean full;
+		stripe.lock.lock();
+		try {
+			try {
+				stripe.encoder.row(values);
+			} catch (IOException e) {
+				//can't happen, stripes have no channel
+				log.error("Failed to encode row", e);
+				return false;
+			}
+			int indexColumn = writer.getIndexTimestampColumn();
+			long ts = timestampOf(values, orderColumn);
+			long indexTs = indexColumn == orderColumn ? ts : timestampOf(values, indexColumn);
+			stripe.endRow(ts, indexTs, indexColumn);
+			full = stripe.isFull();
+			if (full && orderColumn < 0)
+				return stripe.writeOut();
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (full)
+			return merge();
+		return true;
+	}
+	
+	/** Writes a row of numbers without converting them to strings first.
+	 * See {@link CSVFileWriter#writeRow(long, double...)}.
+	 * @param timestamp The value for the first column, typically a time in milliseconds.
+	 * @param values The values for the remaining columns.
+	 * @return true if all went well, false if a segment this call wrote out failed.
+	 */
+	public boolean writeRow(long timestamp, double... values) {
+		Stripe stripe = localStripe.get();
+		boolean full;
+		stripe.lock.lock();
+		try {
+			try {
+				stripe.encoder.field(timestamp);
+				for (int i=0; i<values.length; i++) {
+					stripe.encoder.separator();
+					stripe.encoder.field(values[i]);
+				}
+				stripe.encoder.newline();
+			} catch (IOException e) {
+				log.error("Failed to encode row", e);
+				return false;
+			}
+			int indexColumn = writer.getIndexTimestampColumn();
+			stripe.endRow(timestampOf(timestamp, values, orderColumn), timestampOf(timestamp, values, indexColumn), indexColumn);
+			full = stripe.isFull();
+			if (full && orderColumn < 0)
+				return stripe.writeOut();
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (full)
+			return merge();
+		return true;
+	}
+	
+	private static long timestampOf(List<String> values, int column) {
+		if (column < 0 || column >= values.size())
+			return Long.MIN_VALUE;
+		return CSVIndex.parseTimestamp(values.get(column));
+	}
+	
+	private static long timestampOf(long timestamp, double[] values, int column) {
+		if (column == 0)
+			return timestamp;
+		if (column > 0 && column <= values.length)
+			return (long)values[column - 1];
+		return Long.MIN_VALUE;
+	}
+	
+	/** Writes out every thread's buffered rows and flushes the file.
+	 * @return true if all went well, false otherwise.
+	 */
+	public boolean flush() {
+		boolean ret;
+		if (orderColumn >= 0) {
+			ret = merge();
+		} else {
+			ret = true;
+			for (Stripe stripe : stripes) {
+				stripe.lock.lock();
+				try {
+					if (!stripe.writeOut())
+						ret = false;
+					stripe.dropIfDead();
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+		}
+		return writer.flush() && ret;
+	}
+	
+	/** Writes out every thread's buffered rows and closes the file.
+	 * The writer can still be used afterwards; the file is reopened on the next write.
+	 */
+	public void close() {
+		flush();
+		writer.close();
+	}
+	
+	/* Drops the stripes of threads that have ended, writing out their rows first.
+	 * With an order column that means a merge, which drops them itself.
+	 * Called when a thread makes its first stripe, so callers don't hold any stripe's lock.
+	 */
+	private void dropDeadStripes() {
+		boolean needMerge = false;
+		for (Stripe stripe : stripes) {
+			if (stripe.owner.isAlive())
+				continue;
+			stripe.lock.lock();
+			try {
+				if (orderColumn < 0)
+					stripe.writeOut();
+				else if (stripe.rows > 0)
+					needMerge = true;
+				stripe.dropIfDead();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		if (needMerge)
+			merge();
+	}
+	
+	/* Merges the rows of all the stripes by timestamp and writes them.
+	 * Callers must not hold any stripe's lock.
+	 */
+	private boolean merge() {
+		synchronized (mergeLock) {
+			Object[] all = stripes.toArray();
+			int locked = 0;
+			try {
+				for (; locked < all.length; locked++)
+					((Stripe)all[locked]).lock.lock();
+				return mergeLocked(all);
+			} finally {
+				for (int i=0; i<locked; i++) {
+					Stripe s = (Stripe)all[i];
+					s.dropIfDead();
+					s.lock.unlock();
+				}
+			}
+		}
+	}
+	
+	//Must hold mergeLock and the locks of all the stripes
+	private boolean mergeLocked(Object[] all) {
+		int total = 0;
+		int bytes = 0;
+		int indexColumn = Integer.MIN_VALUE;
+		for (Object o : all) {
+			Stripe s = (Stripe)o;
+			if (s.rows == 0)
+				continue;
+			total += s.rows;
+			bytes += s.encoder.size();
+			if (indexColumn == Integer.MIN_VALUE)
+				indexColumn = s.indexColumn;
+			else if (indexColumn != s.indexColumn)
+				indexColumn = MIXED_COLUMNS;
+		}
+		if (total == 0)
+			return true;
+		if (merged == null || merged.getBuffer().capacity() < bytes) {
+			merged = writer.newEncoder(Math.max(bytes, segmentBytes * 2));
+		}
+		if (mergedEnds == null || mergedEnds.length < total) {
+			mergedEnds = new int[total * 2];
+			mergedIndexTimestamps = new long[total * 2];
+		}
+		
+		//k-way merge; there's one stripe per thread so a linear scan for the smallest head is fine
+		int[] next = new int[all.length];
+		ByteBuffer out = merged.getBuffer();
+		out.clear();
+		for (int n=0; n<total; n++) {
+			int best = -1;
+			long bestTs = 0;
+			for (int k=0; k<all.length; k++) {
+				Stripe s = (Stripe)all[k];
+				if (next[k] < s.rows && (best < 0 || s.timestamps[next[k]] < bestTs)) {
+					best = k;
+					bestTs = s.timestamps[next[k]];
+				}
+			}
+			Stripe s = (Stripe)all[best];
+			int row = next[best]++;
+			int start = row == 0 ? 0 : s.ends[row - 1];
+			ByteBuffer src = s.encoder.getBuffer().duplicate();
+			src.position(start);
+			src.limit(s.ends[row]);
+			out.put(src);
+			mergedEnds[n] = out.position();
+			mergedIndexTimestamps[n] = s.indexTimestamps[row];
+		}
+		for (Object o : all)
+			((Stripe)o).clear();
+		
+		out.flip();
+		boolean ret = writer.writeEncoded(out, mergedEnds, mergedIndexTimestamps, indexColumn, total);
+		out.clear();
+		return ret;
+	}
+}
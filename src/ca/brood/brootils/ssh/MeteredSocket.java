@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jcraft.jsch.ServerSocketFactory;
+import com.jcraft.jsch.SocketFactory;
+
+/** A socket that counts the bytes going through it into a {@link PortForwardMetrics}.
+ * <p>
+ * JSch forwards each connection by pumping data between the local socket and an SSH channel.
+ * Handing it these sockets, through {@link #serverSocketFactory(PortForwardMetrics)} for local
+ * forwards and {@link #socketFactory(PortForwardMetrics)} for remote forwards, lets the traffic
+ * be counted without another relay in between.
+ * <p>
+ * For a local forward JSch accepts the socket, opens the channel, and only then starts reading
+ * from the socket, so the time until the first read is the channel setup time.
+ * @author Charles Hache
+ *
+ */
+class MeteredSocket extends Socket {
+	private final PortForwardMetrics metrics;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final AtomicBoolean setUp = new AtomicBoolean(false);
+	private long startNanos;
+	private InputStream in = null;
+	private OutputStream out = null;
+	
+	MeteredSocket(PortForwardMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/* Called once the socket is connected; setup time is counted from startNanos */
+	private void opened(long startNanos) {
+		this.startNanos = startNanos;
+		metrics.opened();
+	}
+	
+	private void setUp() {
+		if (setUp.compareAndSet(false, true))
+			metrics.setupDone(System.nanoTime() - startNanos);
+	}
+	
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (in == null) {
+			in = new FilterInputStream(super.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					setUp();
+					int b = super.read();
+					if (b >= 0)
+						metrics.addBytesOut(1);
+					return b;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					setUp();
+					int count = super.read(b, off, len);
+					if (count > 0)
+						metrics.addBytesOut(count);
+					return count;
+				}
+				@Override
+				public void close() throws IOException {
+					MeteredSocket.this.close();
+				}
+			};
+		}
+		return in;
+	}
+	
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new FilterOutputStream(super.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					metrics.addBytesIn(1);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					metrics.addBytesIn(len);
+				}
+				@Override
+				public void close() throws IOException {
+					MeteredSocket.this.close();
+				}
+			};
+		}
+		return out;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed.compareAndSet(false, true)) {
+			if (!setUp.get())
+				metrics.setupFailed();
+			metrics.closed();
+		}
+		super.close();
+	}
+	
+	/** Makes a factory for the listening socket of a local forward.
+	 * @param metrics The metrics to count into.
+	 * @return The factory.
+	 */
+	static ServerSocketFactory serverSocketFactory(final PortForwardMetrics metrics) {
+		return new ServerSocketFactory() {
+			@Override
+			public ServerSocket createServerSocket(int port, int backlog, InetAddress bindAddr) throws IOException {
+				return new ServerSocket(port, backlog, bindAddr) {
+					@Override
+					public Socket accept() throws IOException {
+						MeteredSocket socket = new MeteredSocket(metrics);
+						implAccept(socket);
+						socket.opened(System.nanoTime());
+						return socket;
+					}
+				};
+			}
+		};
+	}
+	
+	/** Makes a factory for the sockets that a remote forward connects to the local host.
+	 * @param metrics The metrics to count into.
+	 * @return The factory.
+	 */
+	static SocketFactory socketFactory(final PortForwardMetrics metrics) {
+		return new SocketFactory() {
+			@Override
+			public Socket createSocket(String host, int port) throws IOException {
+				MeteredSocket socket = new MeteredSocket(metrics);
+				long start = System.nanoTime();
+				try {
+					socket.connect(new InetSocketAddress(host, port));
+				} catch (IOException e) {
+					metrics.setupFailed();
+					throw e;
+				}
+				socket.opened(start);
+				socket.setUp();	//connected to the local host, so it's set up
+				return socket;
+			}
+			@Override
+			public InputStream getInputStream(Socket socket) throws IOException {
+				return socket.getInputStream();
+			}
+			@Override
+			public OutputStream getOutputStream(Socket socket) throws IOException {
+				return socket.getOutputStream();
+			}
+		};
+	}
+}
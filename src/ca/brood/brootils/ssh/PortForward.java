@@ -20,6 +20,7 @@
  ******************************************************************************/
 package ca.brood.brootils.ssh;
 
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -29,6 +30,16 @@ import ca.brood.brootils.xml.XMLConfigurable;
  * Can be used to send a forward to an {@link SSHSession}, although
  * there are helper functions for local and remote forwards that wrap
  * this functionality.
+ * <p>
+ * When configured from XML, the forward's element has an attribute giving its type,
+ * "L" or "local", or "R" or "remote", and optionally a "group" attribute naming the tunnel
+ * session group it goes on and a "weight" attribute; see {@link SSHSession#setTunnelSessionCount(int)}.
+ * For example:
+ * <pre>
+ * &lt;forward type="L" group="bulk" weight="10"&gt;
+ *   &lt;localPort&gt;5433&lt;/localPort&gt;&lt;host&gt;db&lt;/host&gt;&lt;remotePort&gt;5432&lt;/remotePort&gt;
+ * &lt;/forward&gt;
+ * </pre>
  * @author Charles Hache
  *
  */
@@ -37,6 +48,9 @@ public class PortForward implements XMLConfigurable {
 	String host;
 	int remotePort;
 	boolean remoteForward;
+	private String group = null;
+	private int weight = 1;
+	private PortForwardMetrics metrics = null;
 	/** Empty constructor.
 	 * The intent is to call {@link #configure(Node)} after instantiating an empty {@link PortForward}
 	 */
@@ -49,6 +63,61 @@ public class PortForward implements XMLConfigurable {
 		this.remotePort = remotePort;
 		this.remoteForward = remoteForward;
 	}
+	/** Creates a forward that goes on the tunnel session of a particular group.
+	 * @param localPort The local port.
+	 * @param host The host to forward to or from.
+	 * @param remotePort The remote port.
+	 * @param remoteForward true for a remote forward, false for a local one.
+	 * @param group The tunnel session group, or null to share the default sessions.
+	 * @param weight How heavily used this forward is, relative to the others; see {@link #setWeight(int)}.
+	 */
+	public PortForward(int localPort, String host, int remotePort, boolean remoteForward, String group, int weight) {
+		this(localPort, host, remotePort, remoteForward);
+		setGroup(group);
+		setWeight(weight);
+	}
+	/** Gets the group of forwards that this one shares a tunnel session with.
+	 * @return The group name, or null if this forward shares the default tunnel sessions.
+	 */
+	public String getGroup() {
+		return group;
+	}
+	/** Sets the group of forwards that this one shares a tunnel session with.
+	 * Forwards in a group get a tunnel session to themselves, so for example a bulk transfer
+	 * can be kept from holding up latency sensitive forwards.  This takes effect when the forward is added to an {@link SSHSession}.
+	 * @param group The group name, or null to share the default tunnel sessions.
+	 */
+	public void setGroup(String group) {
+		if (group != null && group.trim().length() == 0)
+			group = null;
+		this.group = group;
+	}
+	/** Gets how heavily used this forward is, relative to the others.
+	 * @return The weight.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+	/** Sets how heavily used this forward is, relative to the others.
+	 * Forwards without a group are spread over the default tunnel sessions so that each gets about the same total weight.
+	 * The default is 1.
+	 * @param weight The weight.
+	 */
+	public void setWeight(int weight) {
+		this.weight = Math.max(0, weight);
+	}
+	/** Gets the traffic counters for this forward.
+	 * These are only collected by an {@link SSHSession} with {@link SSHSession#setForwardMetrics(boolean)} turned on.
+	 * @return The metrics, or null if this forward hasn't been added to such a session.
+	 */
+	public synchronized PortForwardMetrics getMetrics() {
+		return metrics;
+	}
+	synchronized PortForwardMetrics createMetrics() {
+		if (metrics == null)
+			metrics = new PortForwardMetrics(this);
+		return metrics;
+	}
 	public String toString() {
 		if (host.equals("") || localPort == Integer.MAX_VALUE || remotePort == Integer.MAX_VALUE) {
 			return "PortForward not configured";
@@ -62,14 +131,25 @@ public class PortForward implements XMLConfigurable {
 	@Override
 	public boolean configure(Node rootNode) {
 		NodeList elements = rootNode.getChildNodes();
+		NamedNodeMap attributes = rootNode.getAttributes();
 		
-		if ("L".equalsIgnoreCase(rootNode.getAttributes().item(0).getTextContent())||
-				"local".equalsIgnoreCase(rootNode.getAttributes().item(0).getTextContent())) {
-			this.remoteForward = false;
-		}
-		if ("R".equalsIgnoreCase(rootNode.getAttributes().item(0).getTextContent())||
-				"remote".equalsIgnoreCase(rootNode.getAttributes().item(0).getTextContent())) {
-			this.remoteForward = true;
+		for (int i=0; i<attributes.getLength(); i++) {
+			Node attribute = attributes.item(i);
+			String value = attribute.getTextContent();
+			if ("group".equalsIgnoreCase(attribute.getNodeName())) {
+				setGroup(value);
+			} else if ("weight".equalsIgnoreCase(attribute.getNodeName())) {
+				try {
+					setWeight(Integer.parseInt(value.trim()));
+				} catch (Exception e) {
+					return false;
+				}
+			} else if ("L".equalsIgnoreCase(value) || "local".equalsIgnoreCase(value)) {
+				//the type attribute, whatever it's called
+				this.remoteForward = false;
+			} else if ("R".equalsIgnoreCase(value) || "remote".equalsIgnoreCase(value)) {
+				this.remoteForward = true;
+			}
 		}
 		
 		for (int i=0; i<elements.getLength(); i++) {
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** Traffic and connection counters for one {@link PortForward}.
+ * <p>
+ * "In" and "out" are from the local machine's point of view: bytes in came through the tunnel
+ * from the remote end, and bytes out were sent through the tunnel to it.  For a local forward,
+ * setting up a connection means opening the channel to the remote host; for a remote forward
+ * it means connecting to the local host.
+ * <p>
+ * Metrics are only collected when {@link SSHSession#setForwardMetrics(boolean)} is turned on.
+ * They are then also registered as an MBean named
+ * <code>ca.brood.brootils.ssh:type=PortForward,forward="...",id=n</code>, where the id tells
+ * apart forwards with the same spec, such as the same forward on two {@link SSHSession}s.
+ * @author Charles Hache
+ *
+ */
+public class PortForwardMetrics implements PortForwardMetricsMBean {
+	private static final AtomicLong nextId = new AtomicLong();
+	
+	private Logger log;
+	private final long id;
+	private final String forward;
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong active = new AtomicLong();
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong setupNanos = new AtomicLong();
+	private final AtomicLong maxSetupNanos = new AtomicLong();
+	private ObjectName objectName = null;
+	
+	PortForwardMetrics(PortForward forward) {
+		log = LogManager.getLogger(PortForwardMetrics.class);
+		this.forward = forward.toString();
+		this.id = nextId.incrementAndGet();
+	}
+	
+	void addBytesIn(long count) {
+		bytesIn.addAndGet(count);
+	}
+	
+	void addBytesOut(long count) {
+		bytesOut.addAndGet(count);
+	}
+	
+	void opened() {
+		active.incrementAndGet();
+	}
+	
+	void closed() {
+		active.decrementAndGet();
+	}
+	
+	void setupDone(long nanos) {
+		connections.incrementAndGet();
+		setupNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxSetupNanos.get())) {
+			if (maxSetupNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+	
+	void setupFailed() {
+		failed.incrementAndGet();
+	}
+	
+	@Override
+	public String getForward() {
+		return forward;
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	@Override
+	public long getActiveConnections() {
+		return active.get();
+	}
+	
+	@Override
+	public long getTotalConnections() {
+		return connections.get();
+	}
+	
+	@Override
+	public long getFailedConnections() {
+		return failed.get();
+	}
+	
+	@Override
+	public double getAverageSetupMillis() {
+		long count = connections.get();
+		if (count == 0)
+			return 0;
+		return setupNanos.get() / 1000000.0 / count;
+	}
+	
+	@Override
+	public double getMaxSetupMillis() {
+		return maxSetupNanos.get() / 1000000.0;
+	}
+	
+	@Override
+	public void reset() {
+		bytesIn.set(0);
+		bytesOut.set(0);
+		connections.set(0);
+		failed.set(0);
+		setupNanos.set(0);
+		maxSetupNanos.set(0);
+	}
+	
+	synchronized void register() {
+		if (objectName != null)
+			return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("ca.brood.brootils.ssh:type=PortForward,forward="+ObjectName.quote(forward)+",id="+id);
+			server.registerMBean(this, name);
+			objectName = name;	//only once it's ours, so unregister() can't remove someone else's
+		} catch (Exception e) {
+			log.error("Couldn't register the MBean for "+forward, e);
+		}
+	}
+	
+	synchronized void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (Exception e) {
+			log.error("Couldn't unregister the MBean for "+forward, e);
+		}
+		objectName = null;
+	}
+	
+	@Override
+	public String toString() {
+		return forward+": "+getActiveConnections()+" active, "+getTotalConnections()+" connections ("
+				+getFailedConnections()+" failed), "+getBytesIn()+" bytes in, "+getBytesOut()+" bytes out, "
+				+String.format("%.1f", getAverageSetupMillis())+"ms average setup";
+	}
+}
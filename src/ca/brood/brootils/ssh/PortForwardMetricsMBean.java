@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+/** The JMX view of a {@link PortForwardMetrics}.
+ * @author Charles Hache
+ *
+ */
+public interface PortForwardMetricsMBean {
+	/** @return The forward, as from {@link PortForward#toString()}. */
+	public String getForward();
+	/** @return Bytes that came through the tunnel and were written to the local socket. */
+	public long getBytesIn();
+	/** @return Bytes that were read from the local socket and sent through the tunnel. */
+	public long getBytesOut();
+	/** @return Connections that are open right now. */
+	public long getActiveConnections();
+	/** @return Connections that have been set up successfully. */
+	public long getTotalConnections();
+	/** @return Connections that couldn't be set up. */
+	public long getFailedConnections();
+	/** @return The average time it took to set up a connection, in milliseconds. */
+	public double getAverageSetupMillis();
+	/** @return The longest time it took to set up a connection, in milliseconds. */
+	public double getMaxSetupMillis();
+	/** Sets all the counters, except active connections, back to zero. */
+	public void reset();
+}
@@ -21,12 +21,44 @@
 //Uses code taken from various blogs and tutorials online.
 package ca.brood.brootils.ssh;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,6 +77,11 @@ import com.jcraft.jsch.Session;
  * It is intended to simplify the setup of port forwards (aka tunnels)
  * and to also allow for SCPing files to and from a remote host.
  * <p>
+ * SCP transfers run over connected sessions borrowed from an {@link SSHSessionPool},
+ * so repeated transfers to the same host don't each pay for a new connection.
+ * Transfers don't lock this object, so several can run at once from different threads,
+ * and they don't hold up setting up or closing the tunnels either.
+ * <p>
  * See {@link TunnelKeepaliveThread} for a utility class to keep your tunnels alive.
  * @author Charles Hache
  *
@@ -58,7 +95,27 @@ public class SSHSession {
 	private int port;
 	private JSch jsch;
 	private int timeoutSeconds = 20;
-	private Session tunnelSession = null;
+	//tunnel sessions by slot: "#n" for the nth default session, "group:name" for a named group
+	private final Map<String, Session> tunnelSessions = new ConcurrentHashMap<String, Session>();
+	private final Object tunnelLock = new Object();
+	private final List<PortForward> forwards = new CopyOnWriteArrayList<PortForward>();
+	private final Map<PortForward, String> forwardSlots = new ConcurrentHashMap<PortForward, String>();
+	private int tunnelSessionCount = 1;
+	private volatile int keepaliveIntervalMillis = 0;
+	private volatile int keepaliveCountMax = 3;
+	private volatile boolean forwardMetrics = false;
+	private volatile Executor transferExecutor = null;
+	private volatile String digestAlgorithm = null;
+	private volatile boolean verifyTransfers = false;
+	private static Executor defaultTransferExecutor = null;
+	private static final SSHSessionPool sharedSessionPool = new SSHSessionPool();
+	private volatile SSHSessionPool sessionPool;
+	private final List<String> keyFiles = new CopyOnWriteArrayList<String>();
+	private int maxConcurrentTransfers = 4;
+	private int transferBufferSize = 64*1024;
+	private int deltaBlockSize = 1024*1024;
+	private volatile SSHTransferProfile transferProfile = null;
+	private volatile SSHTransferProfile tunnelProfile = SSHTransferProfile.DEFAULT;
 	
 	/**
 	 * Creates a new {@link SSHSession}.
@@ -66,24 +123,96 @@ public class SSHSession {
 	public SSHSession() {
 		log = LogManager.getLogger(SSHSession.class);
 		jsch = new JSch();
+		sessionPool = sharedSessionPool;
+	}
+	
+	/** Sets the pool that SCP transfers borrow their connected sessions from.
+	 * By default all {@link SSHSession}s share one pool, so a new {@link SSHSession} for each transfer
+	 * still reuses the connections of the ones before it.  Its idle sessions are disconnected after the
+	 * pool's idle timeout, and it is never closed.
+	 * A pool set here is left for the caller to close; {@link #close()} doesn't close either one.
+	 * @param pool The pool to use, or null to go back to the shared pool.
+	 */
+	public void setSessionPool(SSHSessionPool pool) {
+		sessionPool = pool == null ? sharedSessionPool : pool;
+	}
+	
+	/** Gets the pool that SCP transfers borrow their connected sessions from.
+	 * @return The session pool.
+	 */
+	public SSHSessionPool getSessionPool() {
+		return sessionPool;
 	}
 	
-	/** Check the internal SSH session to see if the tunnels are active and connected.
-	 * @return false if no tunnels are configured or if the tunnels are not connected.
+	/** Check the internal SSH sessions to see if the tunnels are active and connected.
+	 * @return false if no tunnels are configured or if any of the tunnel sessions is not connected.
 	 */
 	public boolean areTunnelsActive() {
-		if (tunnelSession == null)
+		if (forwardSlots.isEmpty())
 			return false;
-		return tunnelSession.isConnected();
+		//a slot whose reconnect failed has no session at all, so go by the forwards' slots
+		for (String slot : forwardSlots.values()) {
+			Session ts = tunnelSessions.get(slot);
+			if (ts == null || !ts.isConnected())
+				return false;
+		}
+		return true;
+	}
+	
+	/** Sets how many tunnel sessions port forwards without a group are spread over.
+	 * <p>
+	 * All the forwards on a session share its TCP connection, so one busy forward can hold up
+	 * the others.  With more than one session, each new forward without a group goes to the session
+	 * with the least total {@link PortForward#getWeight() weight} so far.  Forwards with a
+	 * {@link PortForward#getGroup() group} always share a session with just the rest of their group.
+	 * <p>
+	 * This only affects forwards added after the call.  The default is 1.
+	 * @param count The number of sessions for forwards without a group.
+	 */
+	public void setTunnelSessionCount(int count) {
+		synchronized (tunnelLock) {
+			this.tunnelSessionCount = Math.max(1, count);
+		}
+	}
+	
+	/* Picks the tunnel session for a new forward.  Must be called with tunnelLock held. */
+	private String pickSlot(PortForward forward) {
+		if (forward.getGroup() != null)
+			return "group:"+forward.getGroup();
+		long[] load = new long[tunnelSessionCount];
+		for (Map.Entry<PortForward, String> e : forwardSlots.entrySet()) {
+			String slot = e.getValue();
+			if (slot.startsWith("#")) {
+				int index = Integer.parseInt(slot.substring(1));
+				if (index < load.length)
+					load[index] += e.getKey().getWeight();
+			}
+		}
+		int best = 0;
+		for (int i=1; i<load.length; i++) {
+			if (load[i] < load[best])
+				best = i;
+		}
+		return "#"+best;
 	}
 	
 	/**
-	 * Closes any tunnels associated with this {@link SSHSession}
+	 * Closes any tunnels associated with this {@link SSHSession}.
+	 * Pooled SCP sessions are left in the pool, which disconnects them once they have been idle for a while.
+	 * The port forwards are forgotten, so a {@link TunnelKeepaliveThread} won't bring them back.
 	 */
-	public synchronized void close() {
-		if (tunnelSession != null) {
-			tunnelSession.disconnect();
-			tunnelSession = null;
+	public void close() {
+		synchronized (tunnelLock) {
+			for (PortForward forward : forwards) {
+				if (forward.getMetrics() != null)
+					forward.getMetrics().unregister();
+			}
+			forwards.clear();
+			forwardSlots.clear();
+			for (Session ts : tunnelSessions.values()) {
+				ts.disconnect();
+			}
+			tunnelSessions.clear();
 		}
 	}
 	
@@ -121,23 +250,113 @@ public class SSHSession {
 		} else {
 			jsch.addIdentity(keyFilePath);
 		}
+		keyFiles.add(keyFilePath);
 	}
 	
 	/** Ensures this {@link SSHSession} is connected then attempts to add a forwarded port.
-	 * If this session hasn't already been connected to the host, then it tries to connect.
+	 * If the tunnel session this forward goes on hasn't already been connected to the host, then it tries to connect.
+	 * See {@link #setTunnelSessionCount(int)} for how forwards are spread over sessions.
 	 * @param forward The port to forward.
 	 * @throws Exception If the port cannot be forwarded.
 	 */
-	public synchronized void forwardPort(PortForward forward) throws Exception {
-		Session ts = getTunnelSession();
-		
-		if (forward.remoteForward) {
+	public void forwardPort(PortForward forward) throws Exception {
+		synchronized (tunnelLock) {
+			String slot = pickSlot(forward);
+			Session ts = getTunnelSession(slot);
+			
+			addForward(ts, forward);
+			forwards.add(forward);
+			forwardSlots.put(forward, slot);
+		}
+	}
+	
+	private void addForward(Session ts, PortForward forward) throws Exception {
+		if (forwardMetrics) {
+			PortForwardMetrics metrics = forward.createMetrics();
+			metrics.register();
+			if (forward.remoteForward) {
+				ts.setPortForwardingR(null, forward.remotePort, forward.host, forward.localPort, MeteredSocket.socketFactory(metrics));
+			} else {
+				ts.setPortForwardingL("127.0.0.1", forward.localPort, forward.host, forward.remotePort, MeteredSocket.serverSocketFactory(metrics));
+			}
+		} else if (forward.remoteForward) {
 			ts.setPortForwardingR(forward.remotePort, forward.host, forward.localPort);
 		} else {
 			ts.setPortForwardingL(forward.localPort, forward.host, forward.remotePort);
 		}
 	}
 	
+	/** Turns on traffic and connection metrics for port forwards added after this call.
+	 * Each forward's metrics are available from {@link PortForward#getMetrics()} and over JMX;
+	 * see {@link PortForwardMetrics}.  Counting costs a little per read and write on the forwarded sockets.
+	 * @param enabled true to collect metrics.
+	 */
+	public void setForwardMetrics(boolean enabled) {
+		this.forwardMetrics = enabled;
+	}
+	
+	/** Gets the port forwards that have been added to this {@link SSHSession} since it was last closed.
+	 * @return A copy of the list of forwards.
+	 */
+	public List<PortForward> getForwards() {
+		return new ArrayList<PortForward>(forwards);
+	}
+	
+	/** Sets up SSH keepalives on the tunnel sessions, so that a dead connection is noticed quickly.
+	 * A keepalive is sent whenever nothing has been received from the server for intervalMillis,
+	 * and the session is disconnected when countMax of them go unanswered.
+	 * This applies to the current tunnel sessions right away, and to any that are connected later.
+	 * @param intervalMillis The keepalive interval in milliseconds, or 0 to turn keepalives off.
+	 * @param countMax The number of unanswered keepalives before the session is disconnected.
+	 */
+	public void setTunnelKeepalive(int intervalMillis, int countMax) {
+		this.keepaliveIntervalMillis = intervalMillis;
+		this.keepaliveCountMax = countMax;
+		synchronized (tunnelLock) {
+			for (Session ts : tunnelSessions.values()) {
+				try {
+					applyKeepalive(ts);
+				} catch (Exception e) {
+					log.error("Couldn't set the tunnel keepalive", e);
+				}
+			}
+		}
+	}
+	
+	private void applyKeepalive(Session ts) throws Exception {
+		if (keepaliveIntervalMillis > 0) {
+			ts.setServerAliveInterval(keepaliveIntervalMillis);
+			ts.setServerAliveCountMax(keepaliveCountMax);
+		}
+	}
+	
+	/** Replaces each tunnel session that isn't connected with a newly connected one, and adds its port forwards back.
+	 * Sessions that are still connected are left alone.
+	 * This is what {@link TunnelKeepaliveThread} does when a tunnel session has died.
+	 * @return false if there are no port forwards, so nothing was done.
+	 * @throws Exception If a new session couldn't be connected or a forward couldn't be added back.
+	 */
+	public boolean reconnectTunnels() throws Exception {
+		synchronized (tunnelLock) {
+			if (forwards.isEmpty())
+				return false;
+			Exception failure = null;
+			for (String slot : new HashSet<String>(forwardSlots.values())) {
+				Session ts = tunnelSessions.get(slot);
+				if (ts == null || !ts.isConnected()) {
+					try {
+						connectTunnel(slot);
+					} catch (Exception e) {
+						failure = e;	//still try the others
+					}
+				}
+			}
+			if (failure != null)
+				throw failure;
+			return true;
+		}
+	}
+	
 	/** Ensures this {@link SSHSession} is connected then attempts to add a local port forward.
 	 * @param localPort The local port to forward.
 	 * @param remoteHost The host on the remote end to forward to.
@@ -159,6 +378,8 @@ public class SSHSession {
 	}
 	
 	/** Attempts to connect this {@link SSHSession} and SCP a file from the remote host to the local machine.
+	 * If remoteFile is a directory then it is copied recursively, as with <code>scp -r</code>.
+	 * If localFile is an existing directory then the file is saved into it, otherwise it is saved as localFile.
 	 * @param remoteFile The path of the remote file to download.
 	 * @param localFile The path of the local file to save to.
 	 * @return true if the file was transferred, false otherwise.
@@ -167,6 +388,8 @@ public class SSHSession {
 		return scpFile(remoteFile, localFile, false);
 	}
 	/** Attempts to connect this {@link SSHSession} and SCP a file from the local machine to the remote host.
+	 * If localFile is a directory then it is copied recursively, as with <code>scp -r</code>,
+	 * with all of its files and subdirectories streamed over a single channel.
 	 * @param remoteFile The path of the remote file to save to.
 	 * @param localFile The path of the local file to upload.
 	 * @return true if the file was transferred, false otherwise.
@@ -175,6 +398,301 @@ public class SSHSession {
 		return scpFile(remoteFile, localFile, true);
 	}
 	
+	/** Sets the executor that runs the transfers of {@link #scpFileToRemoteAsync(String, String)} and
+	 * {@link #scpFileFromRemoteAsync(String, String)}.
+	 * Each transfer spends most of its time blocked on the network, so the default runs each one on
+	 * a virtual thread when the JVM has them (Java 21 and later), or on a shared pool of daemon threads otherwise.
+	 * @param executor The executor, or null for the default.
+	 */
+	public void setTransferExecutor(Executor executor) {
+		this.transferExecutor = executor;
+	}
+	
+	/** Starts SCPing a file from the local machine to the remote host without waiting for it.
+	 * Cancelling the returned future disconnects the transfer's channel.
+	 * @param remoteFile The path of the remote file to save to.
+	 * @param localFile The path of the local file to upload.
+	 * @return A future that completes with the result of the transfer.  Failed transfers complete normally, with an unsuccessful result.
+	 */
+	public CompletableFuture<TransferResult> scpFileToRemoteAsync(String remoteFile, String localFile) {
+		return transferAsync(remoteFile, localFile, true);
+	}
+	
+	/** Starts SCPing a file from the remote host to the local machine without waiting for it.
+	 * Cancelling the returned future disconnects the transfer's channel.
+	 * @param remoteFile The path of the remote file to download.
+	 * @param localFile The path of the local file to save to.
+	 * @return A future that completes with the result of the transfer.  Failed transfers complete normally, with an unsuccessful result.
+	 */
+	public CompletableFuture<TransferResult> scpFileFromRemoteAsync(String remoteFile, String localFile) {
+		return transferAsync(remoteFile, localFile, false);
+	}
+	
+	private CompletableFuture<TransferResult> transferAsync(final String remoteFile, final String localFile, final boolean toRemote) {
+		final CompletableFuture<TransferResult> future = new CompletableFuture<TransferResult>();
+		final CancelHandle handle = new CancelHandle();
+		future.whenComplete(new BiConsumer<TransferResult, Throwable>() {
+			@Override
+			public void accept(TransferResult result, Throwable t) {
+				if (future.isCancelled())
+					handle.cancel();
+			}
+		});
+		Executor executor = transferExecutor;
+		if (executor == null)
+			executor = getDefaultTransferExecutor();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (future.isDone())
+						return;	//cancelled before it started
+					try {
+						future.complete(transfer(remoteFile, localFile, toRemote, null, handle));
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	private static synchronized Executor getDefaultTransferExecutor() {
+		if (defaultTransferExecutor == null) {
+			try {
+				//Java 21 and later
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				defaultTransferExecutor = (Executor)m.invoke(null);
+			} catch (Exception e) {
+				defaultTransferExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SCP async transfer "+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		return defaultTransferExecutor;
+	}
+	
+	/* Lets another thread cancel a transfer by disconnecting its channel */
+	private static class CancelHandle {
+		private Channel channel = null;
+		private boolean cancelled = false;
+		
+		/* Returns false if the transfer has already been cancelled, in which case the channel is disconnected */
+		public synchronized boolean setChannel(Channel channel) {
+			this.channel = channel;
+			if (cancelled)
+				channel.disconnect();
+			return !cancelled;
+		}
+		
+		public synchronized void cancel() {
+			cancelled = true;
+			if (channel != null)
+				channel.disconnect();
+		}
+	}
+	
+	/** Turns on checksums of SCP transfers, computed from the data as it is copied, so that
+	 * the local file doesn't have to be read again.  The checksum is available from {@link TransferResult#getDigest()}.
+	 * <p>
+	 * With verifyRemote, the remote file's checksum is then computed on the remote host
+	 * with a single command, like <code>sha256sum</code>, and the transfer fails if it doesn't match.
+	 * This is done for transfers of single files only.
+	 * @param algorithm A {@link MessageDigest} algorithm: "MD5", "SHA-1", "SHA-224", "SHA-256", "SHA-384" or "SHA-512";
+	 * or null to turn checksums off.
+	 * @param verifyRemote true to check the remote file's checksum.
+	 * @return false if the algorithm isn't supported, in which case nothing is changed.
+	 */
+	public boolean setTransferDigest(String algorithm, boolean verifyRemote) {
+		if (algorithm != null) {
+			try {
+				MessageDigest.getInstance(algorithm);
+			} catch (Exception e) {
+				log.error("Unsupported digest algorithm: "+algorithm);
+				return false;
+			}
+			if (verifyRemote && remoteDigestCommand(algorithm) == null) {
+				log.error("No remote command for digest algorithm: "+algorithm);
+				return false;
+			}
+		}
+		this.digestAlgorithm = algorithm;
+		this.verifyTransfers = algorithm != null && verifyRemote;
+		return true;
+	}
+	
+	private static String remoteDigestCommand(String algorithm) {
+		String name = algorithm.toUpperCase(Locale.ROOT).replace("-", "");
+		if (name.equals("MD5"))
+			return "md5sum";
+		if (name.matches("SHA(1|224|256|384|512)"))
+			return name.toLowerCase(Locale.ROOT)+"sum";
+		return null;
+	}
+	
+	/* Builds the command that prints the checksum of a transferred remote file, or returns null if transfers aren't verified.
+	 * If uploadName isn't null and remoteFile turns out to be a directory, the file was saved into it with that name.
+	 * Downloads of wildcard paths aren't verified.
+	 */
+	private String verifyCommand(String remoteFile, String uploadName) {
+		String algorithm = digestAlgorithm;
+		if (!verifyTransfers || algorithm == null)
+			return null;
+		if (uploadName == null && remoteFile.matches(".*[*?\\[].*"))
+			return null;
+		String command = "f="+shellQuote(remoteFile)+"; ";
+		if (uploadName != null)
+			command += "if [ -d \"$f\" ]; then f=\"$f\"/"+shellQuote(uploadName)+"; fi; ";
+		return command+remoteDigestCommand(algorithm)+" \"$f\"";
+	}
+	
+	/** Sets the compression and cipher profile used for SCP transfers.
+	 * By default, or if this is set to null, a profile is picked for each file with
+	 * {@link SSHTransferProfile#forFile(java.io.File)} when uploading and
+	 * {@link SSHTransferProfile#forName(String)} when downloading.
+	 * @param profile The profile, or null to pick one automatically.
+	 */
+	public void setTransferProfile(SSHTransferProfile profile) {
+		this.transferProfile = profile;
+	}
+	
+	/** Gets the compression and cipher profile used for SCP transfers.
+	 * @return The profile, or null if one is picked automatically for each file.
+	 */
+	public SSHTransferProfile getTransferProfile() {
+		return transferProfile;
+	}
+	
+	/** Sets the compression and cipher profile used for the tunnel session.
+	 * This only takes effect when the tunnel session is next connected.
+	 * The default is {@link SSHTransferProfile#DEFAULT}.
+	 * @param profile The profile.
+	 */
+	public void setTunnelProfile(SSHTransferProfile profile) {
+		if (profile == null)
+			profile = SSHTransferProfile.DEFAULT;
+		this.tunnelProfile = profile;
+	}
+	
+	/** Gets the compression and cipher profile used for the tunnel session.
+	 * @return The profile.
+	 */
+	public SSHTransferProfile getTunnelProfile() {
+		return tunnelProfile;
+	}
+	
+	/** Sets how many files {@link #scpFilesToRemote(Map)} and {@link #scpFilesFromRemote(Map)} transfer at once.
+	 * Each transfer uses its own channel, and the channels are spread over the pooled sessions
+	 * as allowed by {@link SSHSessionPool#setMaxChannelsPerSession(int)} and {@link SSHSessionPool#setMaxSessions(int)}.
+	 * The default is 4.
+	 * @param max The maximum number of concurrent transfers.
+	 */
+	public void setMaxConcurrentTransfers(int max) {
+		if (max < 1)
+			max = 1;
+		this.maxConcurrentTransfers = max;
+	}
+	
+	/** Gets how many files are transferred at once by the batch methods.
+	 * @return The maximum number of concurrent transfers.
+	 */
+	public int getMaxConcurrentTransfers() {
+		return maxConcurrentTransfers;
+	}
+	
+	/** Sets the size of the buffer that file contents are copied through during SCP transfers.
+	 * Bigger buffers mean fewer, larger, reads and writes on both the local file and the channel.
+	 * The default is 64KB and the minimum is 1KB.
+	 * @param bytes The buffer size in bytes.
+	 */
+	public void setTransferBufferSize(int bytes) {
+		if (bytes < 1024)
+			bytes = 1024;
+		this.transferBufferSize = bytes;
+	}
+	
+	/** Gets the size of the buffer that file contents are copied through during SCP transfers.
+	 * @return The buffer size in bytes.
+	 */
+	public int getTransferBufferSize() {
+		return transferBufferSize;
+	}
+	
+	/** SCPs a batch of files from the local machine to the remote host, several at a time.
+	 * See {@link #setMaxConcurrentTransfers(int)}.
+	 * @param files A map of remote paths to save to, to the local paths to upload.
+	 * @return A map of each remote path to the result of its transfer, in the iteration order of files.
+	 */
+	public Map<String, TransferResult> scpFilesToRemote(Map<String, String> files) {
+		return scpFiles(files, true);
+	}
+	
+	/** SCPs a batch of files from the remote host to the local machine, several at a time.
+	 * See {@link #setMaxConcurrentTransfers(int)}.
+	 * @param files A map of remote paths to download, to the local paths to save to.
+	 * @return A map of each remote path to the result of its transfer, in the iteration order of files.
+	 */
+	public Map<String, TransferResult> scpFilesFromRemote(Map<String, String> files) {
+		return scpFiles(files, false);
+	}
+	
+	private Map<String, TransferResult> scpFiles(Map<String, String> files, final boolean toRemote) {
+		Map<String, TransferResult> results = new LinkedHashMap<String, TransferResult>();
+		if (files.isEmpty())
+			return results;
+		
+		//Remote directories that have already been created by this batch
+		final Set<String> madeDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		int threads = Math.min(maxConcurrentTransfers, files.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SCP transfer "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<TransferResult>> futures = new ArrayList<Future<TransferResult>>(files.size());
+			for (final Map.Entry<String, String> file : files.entrySet()) {
+				futures.add(executor.submit(new Callable<TransferResult>() {
+					@Override
+					public TransferResult call() {
+						return transfer(file.getKey(), file.getValue(), toRemote, madeDirs);
+					}
+				}));
+			}
+			int failed = 0;
+			for (Future<TransferResult> future : futures) {
+				TransferResult result;
+				try {
+					result = future.get();
+				} catch (Exception e) {
+					//transfer() doesn't throw, so this is an interrupt
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (!result.isSuccess())
+					failed++;
+				results.put(result.getRemoteFile(), result);
+			}
+			log.debug("SCPed "+(results.size()-failed)+" of "+files.size()+" files "+(toRemote ? "to " : "from ")+host);
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+	
 	private int checkAck(InputStream in) throws IOException{
 		int b=in.read();
 		// b may be 0 for success,
@@ -190,7 +708,7 @@ public class SSHSession {
 			do {
 				c=in.read();
 				sb.append((char)c);
-			} while(c!='\n');
+			} while(c!='\n' && c!=-1);
 			if(b==1){ // error
 				log.error(sb.toString());
 			}
@@ -201,10 +719,38 @@ public class SSHSession {
 		return b;
 	}
 	
-	private Session createSession() throws Exception {
+	/** Gets the key that sessions to this host with the given profile are pooled under.
+	 * The key includes a digest of the credentials, so that {@link SSHSession}s sharing a pool
+	 * only get sessions that they could have connected themselves.
+	 * @param profile The session's profile.
+	 * @return The key.
+	 */
+	String getPoolKey(SSHTransferProfile profile) {
+		String credentials = "";
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(String.valueOf(password).getBytes("UTF-8"));
+			for (String keyFile : keyFiles) {
+				md.update((byte) 0);
+				md.update(keyFile.getBytes("UTF-8"));
+			}
+			credentials = "#"+toHex(md.digest()).substring(0, 16);
+		} catch (Exception e) {
+			//SHA-256 and UTF-8 are always there
+		}
+		return username+"@"+host+":"+port+"/"+profile.name()+credentials;
+	}
+	
+	/** Creates a new, unconnected, session with this object's settings.
+	 * @param profile The compression and cipher settings for the session.
+	 * @return The session.
+	 * @throws Exception If the session can't be created.
+	 */
+	Session createSession(SSHTransferProfile profile) throws Exception {
 		Session session = jsch.getSession(this.username, this.host, this.port);
 		if (this.password != null)
 			session.setPassword(this.password);
+		profile.apply(session);
 		
 		session.setTimeout(timeoutSeconds*1000);
 		//TODO: review this (StrictHostKeyChecking)
@@ -212,172 +758,729 @@ public class SSHSession {
 		return session;
 	}
 	
-	private synchronized Session getTunnelSession() throws Exception {
-		if (tunnelSession == null) {
-			tunnelSession = createSession();
-			tunnelSession.connect();
+	private Session getTunnelSession(String slot) throws Exception {
+		Session ts = tunnelSessions.get(slot);
+		if (ts != null && ts.isConnected())
+			return ts;
+		synchronized (tunnelLock) {
+			ts = tunnelSessions.get(slot);
+			if (ts == null || !ts.isConnected()) {
+				ts = connectTunnel(slot);
+			}
+			return ts;
+		}
+	}
+	
+	/* Connects a new tunnel session for a slot with all the remembered forwards in that slot.
+	 * Must be called with tunnelLock held.
+	 */
+	private Session connectTunnel(String slot) throws Exception {
+		Session old = tunnelSessions.remove(slot);
+		if (old != null) {
+			old.disconnect();
+		}
+		Session ts = createSession(tunnelProfile);
+		ts.connect();
+		int count = 0;
+		try {
+			//only once connected: in JSch the keepalive interval replaces the session timeout, which connect() uses too
+			applyKeepalive(ts);
+			for (PortForward forward : forwards) {
+				if (slot.equals(forwardSlots.get(forward))) {
+					addForward(ts, forward);
+					count++;
+				}
+			}
+		} catch (Exception e) {
+			ts.disconnect();
+			throw e;
+		}
+		tunnelSessions.put(slot, ts);	//only publish it once it's connected
+		if (count > 0)
+			log.debug("Connected tunnel session "+slot+" to "+host+" with "+count+" forwards");
+		return ts;
+	}
+	
+	/* Reads the rest of an SCP record line, after its type byte, up to the newline.
+	 * Returns null if the stream ends first.
+	 */
+	private String readRecord(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return null;
+			sb.append((char)c);
 		}
-		return tunnelSession;
+		return sb.toString();
+	}
+	
+	private void sendAck(OutputStream out) throws IOException {
+		out.write(0);
+		out.flush();
 	}
 	
 	//return 0 if we got all the data successfully
 	//return -1 on fatal error
-	private int receiveFile(InputStream in, OutputStream out, String localFileName) throws IOException {
-		int ret = -1;
-		byte[] buf=new byte[1024];
-		log.trace("Receiving file.");
-		// read '0644 '
-		if (in.read(buf, 0, 5) != 5) {
-			return -1;
-		}
+	private int receiveFile(InputStream in, OutputStream out, File localFile, long bytesRemaining, byte[] buf, TransferResult result) throws IOException {
+		log.debug("bytesRemaining="+bytesRemaining+", localFile="+localFile);
 
-		// read file size
-		long bytesRemaining=0L;
-		while(in.read(buf, 0, 1)>0){
-			if(buf[0]==' ')break;
-			bytesRemaining=bytesRemaining*10L+(long)(buf[0]-'0');
+		sendAck(out);
+		
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(localFile);
+			return receiveContent(in, out, fos.getChannel(), bytesRemaining, buf, result);
+		} finally {
+			if (fos != null)
+				fos.close();
 		}
+	}
+	
+	/* Copies the content of a file record that has been acked to sink, then finishes the record.
+	 * Returns 0 if we got all the data successfully, -1 otherwise.
+	 */
+	private int receiveContent(InputStream in, OutputStream out, WritableByteChannel sink, long bytesRemaining, byte[] buf, TransferResult result) throws IOException {
+		int ret = -1;
+		ByteBuffer bb = ByteBuffer.wrap(buf);
 		
-		//Allow size 0 files
-//		if (bytesRemaining == 0) {
-//			return -1;
-//		}
-
-		String fileName=null;
-		for(int i=0;i<256;i++){
-			in.read(buf, i, 1);
-			if(buf[i]==(byte)0x0a){
-				fileName=new String(buf, 0, i);
+		//Fill the whole buffer from the channel before each write to the sink
+		int filled = 0;
+		int readRet;
+		while(bytesRemaining >0){
+			readRet = in.read(buf, filled, (int)Math.min(buf.length - filled, bytesRemaining));
+			if(readRet < 0){ 
 				break;
 			}
+			filled += readRet;
+			bytesRemaining -= readRet;
+			if (filled == buf.length || bytesRemaining == 0) {
+				bb.clear().limit(filled);
+				while (bb.hasRemaining())
+					sink.write(bb);
+				result.addData(buf, 0, filled);
+				filled = 0;
+			}
 		}
 		
-		if (fileName == null) {
+		if (bytesRemaining != 0) {
 			return -1;
 		}
 
-		log.debug("bytesRemaining="+bytesRemaining+", fileName="+fileName);
-
-		// send '\0'
-		buf[0]=0; out.write(buf, 0, 1); out.flush();
+		if(checkAck(in) == 0){
+			ret = 0;
+			result.fileDone();
+		}
 		
-		FileOutputStream fos = null;
-		try {
-			File localFile = new File(localFileName);
-			if(localFile.isDirectory()){
-				localFileName=localFile+File.separator+fileName;
-				fos = new FileOutputStream(localFileName);
-			} else {
-				fos = new FileOutputStream(localFile);
+		sendAck(out);
+		return ret;
+	}
+	
+	/* Receives the records of an "scp -f" for a single file, copying its content to sink. */
+	private boolean receiveStream(InputStream in, OutputStream out, WritableByteChannel sink, TransferResult result) throws IOException {
+		sendAck(out);
+		while (true) {
+			int c = in.read();
+			if (c < 0) {
+				log.error("Remote scp ended without sending a file");
+				return false;
 			}
-			
-			int length;
-			int readRet;
-			while(bytesRemaining >0){
-				if (buf.length < bytesRemaining) 
-					length = buf.length;
-				else 
-					length = (int)bytesRemaining;
+			String record = readRecord(in);
+			if (record == null)
+				return false;
+			if (c == 1 || c == 2) {
+				log.error("Remote scp error: "+record);
+				return false;
+			}
+			if (c == 'T') {
+				sendAck(out);
+				continue;
+			}
+			if (c != 'C') {
+				log.error("Expected a single file but got scp record: "+(char)c+record);
+				return false;
+			}
+			String[] parts = record.split(" ", 3);
+			if (parts.length != 3) {
+				log.error("Bad scp record: "+(char)c+record);
+				return false;
+			}
+			sendAck(out);
+			return receiveContent(in, out, sink, Long.parseLong(parts[1]), new byte[transferBufferSize], result) == 0;
+		}
+	}
+	
+	/* Receives the records of an "scp -r -f", which is any number of files (C records)
+	 * and directories (D records, closed by E records), until the remote scp exits.
+	 * The first record is saved into localFile if it's an existing directory, or as localFile otherwise.
+	 */
+	private boolean receiveFiles(InputStream in, OutputStream out, String localFile, TransferResult result) {
+		boolean success = true;
+		int received = 0;
+		byte[] buf = new byte[transferBufferSize];
+		File local = new File(localFile);
+		LinkedList<File> dirs = new LinkedList<File>();
+		try {
+			sendAck(out);
+		
+			while (true) {
+				int c = in.read();
+				if (c < 0)
+					break;	//remote scp is done
+				if (c == 1 || c == 2) {
+					String message = readRecord(in);
+					log.error("Remote scp error: "+message);
+					success = false;
+					if (c == 2)
+						break;
+					continue;
+				}
+				String record = readRecord(in);
+				if (record == null) {
+					success = false;
+					break;
+				}
+				if (c == 'E') {
+					if (dirs.isEmpty()) {
+						success = false;
+						break;
+					}
+					dirs.pop();
+					sendAck(out);
+					continue;
+				}
+				if (c == 'T') {
+					//times, only sent with -p
+					sendAck(out);
+					continue;
+				}
+				if (c != 'C' && c != 'D') {
+					log.error("Unexpected scp record: "+(char)c+record);
+					success = false;
+					break;
+				}
 				
-				readRet = in.read(buf, 0, length);
-				if(readRet < 0){ 
+				// "mode size name"
+				String[] parts = record.split(" ", 3);
+				if (parts.length != 3 || !isSafeName(parts[2])) {
+					log.error("Bad scp record: "+(char)c+record);
+					success = false;
 					break;
 				}
-				fos.write(buf, 0, readRet);
+				long size = Long.parseLong(parts[1]);
+				File target;
+				if (!dirs.isEmpty())
+					target = new File(dirs.peek(), parts[2]);
+				else if (local.isDirectory())
+					target = new File(local, parts[2]);
+				else
+					target = local;
 				
-				bytesRemaining -= readRet;
+				if (c == 'D') {
+					if (!target.isDirectory() && !target.mkdirs()) {
+						log.error("Can't create directory: "+target.getAbsolutePath());
+						success = false;
+						break;
+					}
+					dirs.push(target);
+					sendAck(out);
+					received++;
+					result.directoryDone();
+				} else {
+					if (receiveFile(in, out, target, size, buf, result) != 0) {
+						success = false;
+						break;
+					}
+					received++;
+				}
 			}
-			
-			if (bytesRemaining != 0) {
-				return -1;
+		} catch (Exception e) {
+			log.error("Exception while receiving files", e);
+			success = false;
+		}
+		log.trace("Received "+received+" files and directories");
+		return success && received > 0;
+	}
+	
+	/* Checks that a name from an scp record can't escape the directory it's saved into */
+	private static boolean isSafeName(String name) {
+		return name.length() > 0 && !name.equals(".") && !name.equals("..")
+				&& name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+	}
+	
+	/* Runs a command on the given session and waits for it to finish.
+	 * Returns the command's exit status.
+	 */
+	private int runCommand(Session session, String command) throws Exception {
+		return runCommand(session, command, null);
+	}
+	
+	/* Runs a command on the given session and waits for it to finish.
+	 * Its output is copied to stdout, or discarded if stdout is null.
+	 * Returns the command's exit status.
+	 */
+	private int runCommand(Session session, String command, OutputStream stdout) throws Exception {
+		ChannelExec channel = (ChannelExec)session.openChannel("exec");
+		try {
+			channel.setCommand(command);
+			channel.setErrStream(System.out, true);
+			InputStream in = channel.getInputStream();
+			channel.connect();
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = in.read(buf)) >= 0) {
+				if (stdout != null)
+					stdout.write(buf, 0, len);
 			}
+			return waitForExit(channel);
+		} finally {
+			channel.disconnect();
+		}
+	}
 	
-			if(checkAck(in) == 0){
-				ret = 0;
+	/* Runs a command on the given session with part of a local file as its input, and waits for it to finish.
+	 * Returns the command's exit status.
+	 */
+	private int runCommand(Session session, String command, FileChannel input, long from, long to, byte[] buf, TransferResult result) throws Exception {
+		ChannelExec channel = (ChannelExec)session.openChannel("exec");
+		try {
+			channel.setCommand(command);
+			channel.setErrStream(System.out, true);
+			OutputStream out = channel.getOutputStream();
+			InputStream in = channel.getInputStream();
+			channel.connect();
+			
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			long position = from;
+			while (position < to) {
+				bb.clear().limit((int)Math.min(buf.length, to - position));
+				int len = input.read(bb, position);
+				if (len < 0)
+					throw new IOException("Local file got shorter during the upload");
+				out.write(buf, 0, len);
+				result.addBytes(len);
+				position += len;
 			}
+			out.close();	//sends EOF to the command
 			
-			// send '\0'
-			buf[0]=0; out.write(buf, 0, 1); out.flush();
+			while (in.read(buf) >= 0) {
+				//discard the output
+			}
+			return waitForExit(channel);
 		} finally {
-			fos.close();
+			channel.disconnect();
 		}
+	}
+	
+	/* Waits for a command whose output has been read to the end to finish, and returns its exit status.
+	 * The server sends the exit status after the end of the output, so it isn't there yet when the
+	 * output ends; JSch only has it once the channel is closed.  Returns -1 if it doesn't come in time.
+	 */
+	private int waitForExit(ChannelExec channel) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutSeconds*1000L;
+		while (!channel.isClosed()) {
+			if (System.currentTimeMillis() >= deadline) {
+				log.error("Timed out waiting for the exit status of a remote command");
+				return -1;
+			}
+			Thread.sleep(10);
+		}
+		return channel.getExitStatus();
+	}
+	
+	/** Quotes a string so that the remote shell passes it to a command as a single argument.
+	 * @param arg The string.
+	 * @return The quoted string.
+	 */
+	static String shellQuote(String arg) {
+		return "'"+arg.replace("'", "'\\''")+"'";
+	}
+	
+	private SSHTransferProfile pickProfile(String remoteFile, String localFile, boolean toRemote) {
+		SSHTransferProfile profile = transferProfile;
+		if (profile == null)
+			profile = toRemote ? SSHTransferProfile.forFile(new File(localFile)) : SSHTransferProfile.forName(remoteFile);
+		return profile;
+	}
+	
+	/** Uploads a file, sending only the parts that are missing or different on the remote host.
+	 * <p>
+	 * The remote file's size and per-block MD5 checksums are compared with the local file's.
+	 * Only blocks that differ, and anything past the end of the remote file, are sent,
+	 * and the remote file is then checked against the local file's MD5 checksum.
+	 * This makes it cheap to re-send a file that only had data appended, like the files
+	 * written by {@link ca.brood.brootils.csv.CSVFileWriter}, or to resume an upload that failed part way.
+	 * <p>
+	 * This needs a POSIX shell with <code>dd</code>, <code>wc</code> and <code>md5sum</code> on the remote host.
+	 * If the remote file doesn't exist yet, or anything goes wrong, the whole file is sent
+	 * as with {@link #scpFileToRemote(String, String)}.
+	 * @param remoteFile The path of the remote file to save to.
+	 * @param localFile The path of the local file to upload.
+	 * @return The result of the transfer; its byte count is what was actually sent.
+	 */
+	public TransferResult syncFileToRemote(String remoteFile, String localFile) {
+		File local = new File(localFile);
+		if (!local.isFile())
+			return transfer(remoteFile, localFile, true, null);
 		
-		return ret;
+		TransferResult result = new TransferResult(remoteFile, localFile, true);
+		SSHSessionPool pool = getSessionPool();
+		Session session = null;
+		boolean done = false;
+		boolean reusable = false;
+		try {
+			session = pool.acquire(this, pickProfile(remoteFile, localFile, true), timeoutSeconds*1000L);
+			done = deltaUpload(session, remoteFile, local, result);
+			reusable = true;
+		} catch (Exception e) {
+			log.warn("Delta upload of "+localFile+" failed", e);
+		} finally {
+			if (session != null)
+				pool.release(session, reusable);
+		}
+		if (!done) {
+			log.debug("Sending all of "+localFile);
+			return transfer(remoteFile, localFile, true, null);
+		}
+		result.finish(true, null);
+		log.debug(result);
+		return result;
+	}
+	
+	/** Sets the block size used to compare files in {@link #syncFileToRemote(String, String)}.
+	 * Smaller blocks send less data when scattered parts of a file have changed, but need more checksums.
+	 * The default is 1MB.
+	 * @param bytes The block size in bytes.
+	 */
+	public void setDeltaBlockSize(int bytes) {
+		if (bytes < 4096)
+			bytes = 4096;
+		this.deltaBlockSize = bytes;
 	}
 	
-	private boolean receiveFiles(InputStream in, OutputStream out, String localFile) {
-		int success = -1;
-		byte[] buf=new byte[1];
+	/* Returns true if the remote file now matches the local one,
+	 * or false if it couldn't be done this way and the file should be sent in full.
+	 */
+	private boolean deltaUpload(Session session, String remoteFile, File local, TransferResult result) throws Exception {
+		String quoted = shellQuote(remoteFile);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		if (runCommand(session, "wc -c 2>/dev/null < "+quoted, output) != 0)
+			return false;	//no remote file yet
+		long remoteSize;
 		try {
-			// send '\0'
-			buf[0]=0; out.write(buf, 0, 1); out.flush();
+			remoteSize = Long.parseLong(output.toString("US-ASCII").trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		long localSize = local.length();
+		int blockSize = deltaBlockSize;
+		//only blocks that are complete in both files are compared; everything after them is sent
+		long common = Math.min(localSize, remoteSize) / blockSize;
 		
-			do {
-				int c=checkAck(in);
-				if(c!='C'){
-					break;
-				}
-				
-				success = receiveFile(in, out, localFile);
-			} while (success != 0);
-		} catch (Exception e) {
-			log.error("Exception while receiving files", e);
+		String[] remoteSums = new String[0];
+		if (common > 0) {
+			output.reset();
+			String sums = "i=0; while [ $i -lt "+common+" ]; do dd if="+quoted+" bs="+blockSize
+					+" skip=$i count=1 2>/dev/null | md5sum; i=$((i+1)); done";
+			if (runCommand(session, sums, output) != 0)
+				return false;
+			remoteSums = output.toString("US-ASCII").split("\n");
+			if (remoteSums.length != common)
+				return false;
 		}
-		if (success == 0)
+		
+		byte[] buf = new byte[transferBufferSize];
+		FileInputStream fis = new FileInputStream(local);
+		try {
+			FileChannel fc = fis.getChannel();
+			MessageDigest whole = MessageDigest.getInstance("MD5");
+			MessageDigest block = MessageDigest.getInstance("MD5");
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			
+			//Compare the common blocks and send each run of changed blocks with one dd
+			long runStart = -1;
+			long changed = 0;
+			for (long i = 0; i <= common; i++) {
+				boolean same = false;
+				if (i < common) {
+					long position = i * blockSize;
+					long end = position + blockSize;
+					while (position < end) {
+						bb.clear().limit((int)Math.min(buf.length, end - position));
+						int len = fc.read(bb, position);
+						if (len < 0)
+							return false;
+						block.update(buf, 0, len);
+						whole.update(buf, 0, len);
+						position += len;
+					}
+					same = remoteSums[(int)i].startsWith(toHex(block.digest()));
+				}
+				if (!same && runStart < 0 && i < common) {
+					runStart = i;
+				} else if (same || i == common) {
+					if (runStart >= 0) {
+						String dd = "dd of="+quoted+" bs="+blockSize+" seek="+runStart+" conv=notrunc 2>/dev/null";
+						if (runCommand(session, dd, fc, runStart * blockSize, i * blockSize, buf, result) != 0)
+							return false;
+						changed += i - runStart;
+						runStart = -1;
+					}
+				}
+			}
+			
+			//Send the tail, which also truncates the remote file if it was longer
+			long tail = common * blockSize;
+			long position = tail;
+			while (position < localSize) {
+				bb.clear().limit((int)Math.min(buf.length, localSize - position));
+				int len = fc.read(bb, position);
+				if (len < 0)
+					return false;
+				whole.update(buf, 0, len);
+				position += len;
+			}
+			String dd = "dd of="+quoted+" bs="+blockSize+" seek="+common+" 2>/dev/null";
+			if (runCommand(session, dd, fc, tail, localSize, buf, result) != 0)
+				return false;
+			log.trace(remoteFile+": "+changed+" of "+common+" blocks changed, "+(localSize - tail)+" bytes of tail sent");
+			
+			//Check the result
+			output.reset();
+			if (runCommand(session, "md5sum "+quoted, output) != 0)
+				return false;
+			if (!output.toString("US-ASCII").startsWith(toHex(whole.digest()))) {
+				log.warn("Checksum mismatch after delta upload of "+local);
+				return false;
+			}
 			return true;
-		return false;
+		} finally {
+			fis.close();
+		}
+	}
+	
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
 	}
 
-	private synchronized boolean scpFile(String remoteFile, String localFile, boolean toRemote) {
+	private boolean scpFile(String remoteFile, String localFile, boolean toRemote) {
+		return transfer(remoteFile, localFile, toRemote, null).isSuccess();
+	}
+	
+	/* Does a single SCP transfer over a pooled session.
+	 * madeDirs is the set of remote directories that are already known to exist, or null.
+	 */
+	private TransferResult transfer(String remoteFile, String localFile, boolean toRemote, Set<String> madeDirs) {
+		return transfer(remoteFile, localFile, toRemote, madeDirs, null);
+	}
+	
+	/* As above, with a handle that can cancel the transfer from another thread, or null. */
+	private TransferResult transfer(String remoteFile, final String localFile, boolean toRemote, Set<String> madeDirs, CancelHandle handle) {
+		TransferResult result = new TransferResult(remoteFile, localFile, toRemote);
+		SSHTransferProfile profile = pickProfile(remoteFile, localFile, toRemote);
+		if (toRemote) {
+			String command;
+			if (new File(localFile).isDirectory())
+				command="scp -r -t "+remoteFile;
+			else
+				command="scp -t "+remoteFile;
+			String verify = null;
+			if (!new File(localFile).isDirectory())
+				verify = verifyCommand(remoteFile, baseName(localFile));
+			return runScp(result, profile, command, remoteFile, madeDirs, handle, verify, new ScpAction() {
+				@Override
+				public boolean run(InputStream in, OutputStream out, TransferResult result) throws IOException {
+					return sendFile(in, out, localFile, null, result);
+				}
+			});
+		} else {
+			return runScp(result, profile, "scp -r -f "+remoteFile, null, null, handle, verifyCommand(remoteFile, null), new ScpAction() {
+				@Override
+				public boolean run(InputStream in, OutputStream out, TransferResult result) throws IOException {
+					return receiveFiles(in, out, localFile, result);
+				}
+			});
+		}
+	}
+	
+	/* The part of an SCP transfer that runs over the connected scp channel */
+	private interface ScpAction {
+		public boolean run(InputStream in, OutputStream out, TransferResult result) throws IOException;
+	}
+	
+	/* Runs an scp command over a pooled session and does the transfer with action.
+	 * If mkdirFor isn't null, the parent directory of that remote path is created first,
+	 * unless it's in madeDirs.
+	 * If verifyCommand isn't null and a single file was transferred, it is run afterwards to get the
+	 * remote file's checksum; see verifyCommand().
+	 */
+	private TransferResult runScp(TransferResult result, SSHTransferProfile profile, String command, String mkdirFor,
+			Set<String> madeDirs, CancelHandle handle, String verifyCommand, ScpAction action) {
+		SSHSessionPool pool = getSessionPool();
 		Session session = null;
+		Channel channel = null;
 		boolean ret = false;
+		boolean reusable = false;
+		Exception cause = null;
 		
 		try {
+			session = pool.acquire(this, profile, timeoutSeconds*1000L);
 	
-			session = createSession();
-			session.connect();
-	
-			String command;
-			if (toRemote) {
-				command="scp -t "+remoteFile;
-
+			if (mkdirFor != null) {
 				//Make sure the remote directory exists
-				String mkdir = "mkdir -p "+new File(remoteFile).getParent();
-				
-				Channel mkdirChannel = session.openChannel("exec");
-				((ChannelExec)mkdirChannel).setCommand(mkdir);
-				((ChannelExec)mkdirChannel).setErrStream(System.out, true);
-				mkdirChannel.connect();
-			} else {
-				command="scp -f "+remoteFile;
+				String parent = new File(mkdirFor).getParent();
+				if (parent != null && (madeDirs == null || !madeDirs.contains(parent))) {
+					runCommand(session, "mkdir -p "+parent);
+					if (madeDirs != null)
+						madeDirs.add(parent);
+				}
 			}
 
-			Channel channel=session.openChannel("exec");
+			channel=session.openChannel("exec");
 			((ChannelExec)channel).setCommand(command);
+			if (handle != null && !handle.setChannel(channel))
+				throw new CancellationException("Transfer cancelled");
 	
 			// get I/O streams for remote scp
 			OutputStream out=channel.getOutputStream();
 			InputStream in=channel.getInputStream();
 	
+			String algorithm = digestAlgorithm;
+			if (algorithm != null)
+				result.setDigest(MessageDigest.getInstance(algorithm));
+	
 			channel.connect();
 			
-			if (toRemote) {
-				ret = sendFile(in, out, localFile, null);
-			} else {
-				ret = receiveFiles(in, out, localFile);
-			}
+			ret = action.run(in, out, result);
+			reusable = true;
 			
-    	} catch(Exception e){
-    		log.error("Error SCPing file", e);
-    		ret = false;
-    	} finally {
-    		if (session != null)
-    			session.disconnect();
-    	}
-		return ret;
+			if (ret && verifyCommand != null && result.isSingleFile()) {
+				channel.disconnect();
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				int status = runCommand(session, verifyCommand, output);
+				//the digest is the first word of the output, as "<hex>  <file>"
+				String text = output.toString("US-ASCII").trim();
+				String remoteDigest = text.split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+				if (status != 0) {
+					ret = false;
+					cause = new IOException("Couldn't get the remote checksum of "+result.getRemoteFile()+" (exit status "+status+"): "+text);
+					log.error(cause.getMessage());
+				} else if (!remoteDigest.equals(result.getDigest())) {
+					ret = false;
+					cause = new IOException("Remote checksum of "+result.getRemoteFile()+" doesn't match: "+text);
+					log.error(cause.getMessage());
+				} else {
+					result.setVerified(true);
+				}
+			}
+		} catch(Exception e){
+			log.error("Error SCPing file", e);
+			ret = false;
+			cause = e;
+		} finally {
+			if (channel != null)
+				channel.disconnect();
+			if (session != null)
+				pool.release(session, reusable);
+		}
+		result.finish(ret, cause);
+		if (ret)
+			log.debug(result);
+		else
+			log.trace(result);
+		return result;
+	}
+	
+	/** SCPs data from a stream to a file on the remote host, without it having to be in a local file.
+	 * @param remoteFile The path of the remote file to save to.
+	 * @param data The data to upload.  It is read up to length bytes, and not closed.
+	 * @param length The number of bytes to upload; the stream must have at least this many.
+	 * @return The result of the transfer.
+	 */
+	public TransferResult scpStreamToRemote(final String remoteFile, final InputStream data, final long length) {
+		TransferResult result = new TransferResult(remoteFile, null, true);
+		SSHTransferProfile profile = transferProfile;
+		if (profile == null)
+			profile = SSHTransferProfile.forName(remoteFile);
+		return runScp(result, profile, "scp -t "+remoteFile, remoteFile, null, null, verifyCommand(remoteFile, baseName(remoteFile)), new ScpAction() {
+			@Override
+			public boolean run(InputStream in, OutputStream out, TransferResult result) throws IOException {
+				if(checkAck(in)!=0){
+					log.error("Can't start because didn't receive ack");
+					return false;
+				}
+				return sendContent(in, out, baseName(remoteFile), length, Channels.newChannel(data),
+						new byte[transferBufferSize], result);
+			}
+		});
+	}
+	
+	/** SCPs a file from the remote host into a stream, without saving it to a local file.
+	 * @param remoteFile The path of the remote file to download.  It must be a single file.
+	 * @param data The stream to write the file's contents to.  It is not closed.
+	 * @return The result of the transfer.
+	 */
+	public TransferResult scpStreamFromRemote(String remoteFile, OutputStream data) {
+		return scpStreamFromRemote(remoteFile, Channels.newChannel(data));
 	}
 	
-	private boolean sendFile(InputStream in, OutputStream out, String localFileName, String remoteFileName) throws IOException {
+	/** SCPs a file from the remote host and hands its contents to a callback as they arrive.
+	 * @param remoteFile The path of the remote file to download.  It must be a single file.
+	 * @param consumer Called with each chunk of the file, in order.  The buffer is only valid during the call.
+	 * @return The result of the transfer.
+	 */
+	public TransferResult scpStreamFromRemote(String remoteFile, final Consumer<ByteBuffer> consumer) {
+		return scpStreamFromRemote(remoteFile, new WritableByteChannel() {
+			private boolean open = true;
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+			@Override
+			public void close() {
+				open = false;
+			}
+			@Override
+			public int write(ByteBuffer src) {
+				int count = src.remaining();
+				consumer.accept(src.asReadOnlyBuffer());
+				src.position(src.limit());
+				return count;
+			}
+		});
+	}
+	
+	private TransferResult scpStreamFromRemote(String remoteFile, final WritableByteChannel sink) {
+		TransferResult result = new TransferResult(remoteFile, null, false);
+		SSHTransferProfile profile = transferProfile;
+		if (profile == null)
+			profile = SSHTransferProfile.forName(remoteFile);
+		return runScp(result, profile, "scp -f "+remoteFile, null, null, null, verifyCommand(remoteFile, null), new ScpAction() {
+			@Override
+			public boolean run(InputStream in, OutputStream out, TransferResult result) throws IOException {
+				return receiveStream(in, out, sink, result);
+			}
+		});
+	}
+	
+	static String baseName(String path) {
+		// filename should not include '/', and directories are often given with a trailing one
+		int end = path.length();
+		while (end > 1 && (path.charAt(end - 1) == '/' || path.charAt(end - 1) == File.separatorChar))
+			end--;
+		path = path.substring(0, end);
+		int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar));
+		if (slash >= 0 && slash < path.length() - 1)
+			return path.substring(slash + 1);
+		return path;
+	}
+	
+	private boolean sendFile(InputStream in, OutputStream out, String localFileName, String remoteFileName, TransferResult result) throws IOException {
 		
 		if(checkAck(in)!=0){
 			log.error("Can't start because didn't receive ack");
@@ -385,10 +1488,41 @@ public class SSHSession {
 		}
 		
 		File localFile = new File(localFileName);
+		String name = baseName(remoteFileName == null ? localFileName : remoteFileName);
 		
+		boolean ret = sendEntry(in, out, localFile, name, new byte[transferBufferSize], result);
+		out.flush();
+		return ret;
+	}
+	
+	/* Sends a file, or a directory and everything in it, as scp records.
+	 * Records are written one after another on the same channel; only the acks are waited on.
+	 */
+	private boolean sendEntry(InputStream in, OutputStream out, File localFile, String name, byte[] buf, TransferResult result) throws IOException {
 		if (localFile.isDirectory()) {
-			log.error("Sending whole directories is not implemented");
-			return false;
+			File[] children = localFile.listFiles();
+			if (children == null) {
+				log.error("Cannot list the directory: "+localFile.getAbsolutePath());
+				return false;
+			}
+			Arrays.sort(children);
+			
+			result.directoryDone();
+			out.write(("D0755 0 "+name+"\n").getBytes()); out.flush();
+			if(checkAck(in)!=0){
+				log.error("Lost ack after sending directory info");
+				return false;
+			}
+			for (File child : children) {
+				if (!sendEntry(in, out, child, child.getName(), buf, result))
+					return false;
+			}
+			out.write("E\n".getBytes()); out.flush();
+			if(checkAck(in)!=0){
+				log.error("Lost ack after ending directory");
+				return false;
+			}
+			return true;
 		}
 
 		if (!localFile.canRead()) {
@@ -396,23 +1530,23 @@ public class SSHSession {
 			return false;
 		}
 		
-		 // send "C0644 filesize filename", where filename should not include '/'
-		long filesize=localFile.length();
-		String command = "C0644 "+filesize+" ";
-		if (remoteFileName == null) {
-			if(localFileName.lastIndexOf('/')>0){
-				command+=localFileName.substring(localFileName.lastIndexOf('/')+1);
-			} else {
-				command+=localFileName;
-			}
-		} else {
-			if(remoteFileName.lastIndexOf('/')>0){
-				command+=remoteFileName.substring(remoteFileName.lastIndexOf('/')+1);
-			} else {
-				command+=remoteFileName;
+		// send a content of lfile
+		FileInputStream fis=new FileInputStream(localFile);
+		try {
+			if (!sendContent(in, out, name, localFile.length(), fis.getChannel(), buf, result)) {
+				log.error("Failed sending: "+localFile.getAbsolutePath());
+				return false;
 			}
+		} finally {
+			fis.close();
 		}
-		command+="\n";
+		return true;
+	}
+	
+	/* Sends a file record with exactly size bytes of content read from source. */
+	private boolean sendContent(InputStream in, OutputStream out, String name, long size, ReadableByteChannel source, byte[] buf, TransferResult result) throws IOException {
+		 // send "C0644 filesize filename"
+		String command = "C0644 "+size+" "+name+"\n";
 		
 		out.write(command.getBytes()); out.flush();
 		
@@ -421,26 +1555,32 @@ public class SSHSession {
 			return false;
 		}
 		
-		// send a content of lfile
-		FileInputStream fis=new FileInputStream(localFile);
-		byte[] buf=new byte[1024];
-		
-		try {
-			int len;
-			while( (len = fis.read(buf, 0, buf.length) ) > 0 ){
-				out.write(buf, 0, len);
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		//Send exactly the size that was announced, in full buffers
+		long bytesRemaining = size;
+		while (bytesRemaining > 0) {
+			bb.clear().limit((int)Math.min(buf.length, bytesRemaining));
+			while (bb.hasRemaining() && source.read(bb) >= 0) {
+				//keep filling the buffer
 			}
-		} finally {
-			fis.close();
+			if (bb.position() == 0)
+				break;
+			out.write(buf, 0, bb.position());
+			result.addData(buf, 0, bb.position());
+			bytesRemaining -= bb.position();
+		}
+		if (bytesRemaining > 0) {
+			//The remote end is waiting for more data, so this channel can't be used any more
+			throw new IOException("Data ended "+bytesRemaining+" bytes short of the announced size");
 		}
 			
-		// send '\0'
-		buf[0]=0; out.write(buf, 0, 1); out.flush();
+		sendAck(out);
 		
 		if(checkAck(in)!=0){
 			return false;
 		}
 		
+		result.fileDone();
 		return true;
 	}
 }
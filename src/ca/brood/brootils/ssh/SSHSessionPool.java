@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+
+/** A pool of connected JSch {@link Session}s, kept per host, port and user.
+ * <p>
+ * Connecting a session means a TCP connection, key exchange and authentication, which
+ * is a lot of overhead for a small SCP transfer.  {@link SSHSession} borrows sessions
+ * from a pool instead and only opens new channels on them.
+ * <p>
+ * Sessions are kept per {@link SSHTransferProfile} too.
+ * A session can be lent to a few users at once, since each of them only opens its own
+ * channels on it; see {@link #setMaxChannelsPerSession(int)}.  Sessions that have been
+ * idle for a while are checked by opening a channel, which the server has to confirm,
+ * before they are lent out again, and sessions that have been idle for longer than
+ * the idle timeout are disconnected.
+ * When all the sessions for a host are busy and the maximum has been reached, borrowers wait.
+ * <p>
+ * By default all {@link SSHSession}s share one pool; a different one can be set with
+ * {@link SSHSession#setSessionPool(SSHSessionPool)}.
+ * The idle timer thread only runs while the pool has sessions in it.
+ * @author Charles Hache
+ *
+ */
+public class SSHSessionPool {
+	//how long the server gets to answer a health check
+	private static final int HEALTH_CHECK_TIMEOUT = 5000;
+	
+	private static class PooledSession {
+		private final Session session;
+		private int leases;
+		private long lastUsed;
+		
+		public PooledSession(Session session) {
+			this.session = session;
+			this.leases = 0;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+	
+	private Logger log;
+	private final Map<String, List<PooledSession>> pools;
+	private final Map<String, Integer> connecting;
+	private int maxSessions;
+	private int maxChannelsPerSession;
+	private long idleTimeoutMillis;
+	private long healthCheckMillis;
+	private Timer reaper;
+	private boolean closed;
+	
+	/** Creates an empty pool with the default settings:
+	 * up to 4 sessions per host, 4 channels per session, a 60 second idle timeout
+	 * and a health check for sessions that have been idle for 10 seconds.
+	 */
+	public SSHSessionPool() {
+		log = LogManager.getLogger(SSHSessionPool.class);
+		pools = new HashMap<String, List<PooledSession>>();
+		connecting = new HashMap<String, Integer>();
+		maxSessions = 4;
+		maxChannelsPerSession = 4;
+		idleTimeoutMillis = 60000;
+		healthCheckMillis = 10000;
+		reaper = null;
+		closed = false;
+	}
+	
+	/** Sets the maximum number of sessions to the same host, port and user.
+	 * @param max The maximum number of sessions.
+	 */
+	public synchronized void setMaxSessions(int max) {
+		maxSessions = Math.max(1, max);
+		notifyAll();
+	}
+	
+	/** Sets how many borrowers can use one session at the same time.
+	 * Servers limit the number of channels per connection (OpenSSH's MaxSessions defaults to 10).
+	 * @param max The maximum number of concurrent borrowers per session.
+	 */
+	public synchronized void setMaxChannelsPerSession(int max) {
+		maxChannelsPerSession = Math.max(1, max);
+		notifyAll();
+	}
+	
+	/** Sets how long a session can sit unused before it is disconnected.
+	 * @param millis The idle timeout in milliseconds.
+	 */
+	public synchronized void setIdleTimeout(long millis) {
+		idleTimeoutMillis = Math.max(0, millis);
+	}
+	
+	/** Sets how long a session can sit unused before it is checked before being lent out.
+	 * The check opens a channel and runs <code>true</code> on it, so it costs a round trip.
+	 * @param millis The time in milliseconds.
+	 */
+	public synchronized void setHealthCheckInterval(long millis) {
+		healthCheckMillis = Math.max(0, millis);
+	}
+	
+	/** Borrows a connected session for the given {@link SSHSession}'s host, port and user, connecting a new one if needed.
+	 * Sessions with different profiles are pooled separately, since the profile is fixed when a session connects.
+	 * Every session borrowed must be given back with {@link #release(Session, boolean)}.
+	 * @param owner The {@link SSHSession} whose settings are used to create a new session.
+	 * @param profile The compression and cipher settings the session must have.
+	 * @param timeoutMillis How long to wait for a session if they're all busy.
+	 * @return The session.
+	 * @throws Exception If a session couldn't be connected, or none became free in time.
+	 */
+	public Session acquire(SSHSession owner, SSHTransferProfile profile, long timeoutMillis) throws Exception {
+		String key = owner.getPoolKey(profile);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			PooledSession candidate = null;
+			boolean create = false;
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("Session pool is closed");
+				List<PooledSession> list = getList(key);
+				for (PooledSession ps : list) {
+					if (ps.leases < maxChannelsPerSession && (candidate == null || ps.leases < candidate.leases))
+						candidate = ps;
+				}
+				if (candidate != null) {
+					candidate.leases++;
+				} else if (list.size() + connectingCount(key) < maxSessions) {
+					create = true;
+					connecting.put(key, connectingCount(key) + 1);
+				} else {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new Exception("Timed out waiting for a free SSH session to "+key);
+					wait(wait);
+					continue;
+				}
+			}
+			
+			if (create) {
+				//connect outside the lock, it takes a while
+				Session session = null;
+				try {
+					session = owner.createSession(profile);
+					session.connect();
+				} finally {
+					synchronized (this) {
+						connecting.put(key, connectingCount(key) - 1);
+						if (session != null && session.isConnected() && !closed) {
+							PooledSession ps = new PooledSession(session);
+							ps.leases = 1;
+							getList(key).add(ps);
+							startReaper();
+						}
+						notifyAll();
+					}
+				}
+				log.debug("Connected new pooled session to "+key);
+				return session;
+			}
+			
+			if (isHealthy(candidate)) {
+				return candidate.session;
+			}
+			//bad session, throw it away and try again
+			synchronized (this) {
+				candidate.leases--;
+				remove(key, candidate);
+			}
+		}
+	}
+	
+	/** Gives a borrowed session back to the pool.
+	 * @param session The session.
+	 * @param reusable false if something went wrong that might have left the session unusable; it is then disconnected.
+	 */
+	public void release(Session session, boolean reusable) {
+		synchronized (this) {
+			for (Map.Entry<String, List<PooledSession>> e : pools.entrySet()) {
+				for (PooledSession ps : e.getValue()) {
+					if (ps.session == session) {
+						ps.leases--;
+						ps.lastUsed = System.currentTimeMillis();
+						if (!reusable || !session.isConnected() || closed)
+							remove(e.getKey(), ps);
+						notifyAll();
+						return;
+					}
+				}
+			}
+		}
+		//not ours anymore (pool was closed or it was removed); just get rid of it
+		session.disconnect();
+	}
+	
+	/** Disconnects every session in the pool and stops the idle timer.
+	 * Sessions that are still borrowed are disconnected when they're released.
+	 */
+	public void close() {
+		List<Session> toClose = new ArrayList<Session>();
+		synchronized (this) {
+			closed = true;
+			for (List<PooledSession> list : pools.values()) {
+				for (PooledSession ps : list) {
+					if (ps.leases == 0)
+						toClose.add(ps.session);
+				}
+			}
+			pools.clear();
+			if (reaper != null) {
+				reaper.cancel();
+				reaper = null;
+			}
+			notifyAll();
+		}
+		for (Session s : toClose)
+			s.disconnect();
+	}
+	
+	/** Gets the number of sessions in the pool, busy or not.
+	 * @return The number of sessions.
+	 */
+	public synchronized int size() {
+		int count = 0;
+		for (List<PooledSession> list : pools.values())
+			count += list.size();
+		return count;
+	}
+	
+	private boolean isHealthy(PooledSession ps) {
+		if (!ps.session.isConnected())
+			return false;
+		long idle;
+		synchronized (this) {
+			idle = System.currentTimeMillis() - ps.lastUsed;
+		}
+		if (idle >= healthCheckMillis) {
+			//a keepalive isn't answered in a way JSch waits for, so a half-open connection would pass;
+			//opening a channel has to be confirmed by the server
+			Channel channel = null;
+			try {
+				channel = ps.session.openChannel("exec");
+				((ChannelExec)channel).setCommand("true");
+				channel.connect(HEALTH_CHECK_TIMEOUT);
+			} catch (Exception e) {
+				log.debug("Pooled session failed its health check", e);
+				return false;
+			} finally {
+				if (channel != null)
+					channel.disconnect();
+			}
+		}
+		return ps.session.isConnected();
+	}
+	
+	//Must hold the lock
+	private int connectingCount(String key) {
+		Integer count = connecting.get(key);
+		return count == null ? 0 : count;
+	}
+	
+	//Must hold the lock
+	private List<PooledSession> getList(String key) {
+		List<PooledSession> list = pools.get(key);
+		if (list == null) {
+			list = new ArrayList<PooledSession>();
+			pools.put(key, list);
+		}
+		return list;
+	}
+	
+	//Must hold the lock.  The session is disconnected once nobody is using it.
+	private void remove(String key, PooledSession ps) {
+		List<PooledSession> list = pools.get(key);
+		if (list != null) {
+			list.remove(ps);
+			if (list.isEmpty())
+				pools.remove(key);
+		}
+		if (ps.leases <= 0)
+			ps.session.disconnect();
+		notifyAll();
+	}
+	
+	//Must hold the lock
+	private void startReaper() {
+		if (reaper != null)
+			return;
+		reaper = new Timer("SSHSessionPool-reaper", true);
+		long period = Math.max(1000, idleTimeoutMillis / 4);
+		reaper.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		}, period, period);
+	}
+	
+	private void closeIdle() {
+		List<Session> toClose = new ArrayList<Session>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, List<PooledSession>>> it = pools.entrySet().iterator();
+			while (it.hasNext()) {
+				List<PooledSession> list = it.next().getValue();
+				Iterator<PooledSession> sessions = list.iterator();
+				while (sessions.hasNext()) {
+					PooledSession ps = sessions.next();
+					if (ps.leases == 0 && (now - ps.lastUsed >= idleTimeoutMillis || !ps.session.isConnected())) {
+						sessions.remove();
+						toClose.add(ps.session);
+					}
+				}
+				if (list.isEmpty())
+					it.remove();
+			}
+			if (pools.isEmpty() && reaper != null) {
+				//nothing left to watch, it's started again with the next session
+				reaper.cancel();
+				reaper = null;
+			}
+			notifyAll();
+		}
+		for (Session s : toClose) {
+			log.debug("Closing idle pooled session to "+s.getHost());
+			s.disconnect();
+		}
+	}
+}
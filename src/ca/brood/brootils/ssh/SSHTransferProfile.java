@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.jcraft.jsch.Session;
+
+/** Compression and cipher settings for an SSH connection, tuned for what it's used for.
+ * <p>
+ * Compression is a big win for text like CSV files and logs, especially over slow or
+ * metered links, but it only burns CPU on data that's already compressed.
+ * <p>
+ * The tuned profiles also change the cipher and MAC orders.  In SSH the client's order decides:
+ * the first algorithm in the client's list that the server also supports is used.  AES in CTR
+ * mode and HMAC-SHA256 come first, since modern JVMs run them on the CPU's AES and SHA
+ * instructions, and the CBC modes, Blowfish and 3DES, which are slow and old, come last.
+ * JSch's own order puts HMAC-MD5 first and 3DES ahead of AES-192 and AES-256.
+ * <p>
+ * {@link #forFile(File)} and {@link #forName(String)} pick a profile for a file automatically.
+ * @author Charles Hache
+ *
+ */
+public enum SSHTransferProfile {
+	/** JSch's own defaults: no compression. */
+	DEFAULT(null, 0, null, null),
+	/** For big transfers of data that compresses well, like CSV files and logs. */
+	BULK_COMPRESSIBLE("zlib@openssh.com,zlib,none", 6, SSHTransferProfile.CIPHERS, SSHTransferProfile.MACS),
+	/** For big transfers of data that's already compressed, like archives and images. */
+	BULK_INCOMPRESSIBLE("none", 0, SSHTransferProfile.CIPHERS, SSHTransferProfile.MACS),
+	/** For port forwards: light compression that doesn't add much delay to small packets. */
+	LOW_LATENCY_TUNNEL("zlib@openssh.com,zlib,none", 1, SSHTransferProfile.CIPHERS, SSHTransferProfile.MACS);
+	
+	//fastest first, see the class description; JSch drops any the JVM can't do
+	private static final String CIPHERS = "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes192-cbc,aes256-cbc,blowfish-cbc,3des-ctr,3des-cbc";
+	private static final String MACS = "hmac-sha2-256,hmac-sha1,hmac-sha1-96,hmac-md5,hmac-md5-96";
+	
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"gz", "tgz", "bz2", "xz", "lz", "lzma", "zst", "z", "zip", "7z", "rar", "jar", "war",
+			"jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "ogg", "avi", "mkv", "mov", "pdf"));
+	private static final Set<String> TEXT_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"csv", "txt", "log", "xml", "json", "html", "htm", "sql", "ini", "conf", "properties",
+			"java", "c", "h", "py", "sh", "tsv", "md"));
+	//files smaller than this aren't worth compressing
+	private static final long SMALL_FILE = 1024;
+	//how much of a file of unknown type is looked at
+	private static final int SNIFF_SIZE = 4096;
+	
+	private final String compression;
+	private final int compressionLevel;
+	private final String ciphers;
+	private final String macs;
+	
+	private SSHTransferProfile(String compression, int compressionLevel, String ciphers, String macs) {
+		this.compression = compression;
+		this.compressionLevel = compressionLevel;
+		this.ciphers = ciphers;
+		this.macs = macs;
+	}
+	
+	/** Checks whether this profile asks for compression.
+	 * @return true if the connection is compressed when the server supports it.
+	 */
+	public boolean isCompressed() {
+		return compression != null && !compression.equals("none");
+	}
+	
+	/** Sets up a new, unconnected, session with this profile's settings.
+	 * @param session The session.
+	 */
+	void apply(Session session) {
+		if (compression != null) {
+			session.setConfig("compression.s2c", compression);
+			session.setConfig("compression.c2s", compression);
+			if (isCompressed()) {
+				session.setConfig("compression_level", Integer.toString(compressionLevel));
+				session.setConfig("zlib", ZlibCompression.class.getName());
+				session.setConfig("zlib@openssh.com", ZlibCompression.class.getName());
+			}
+		}
+		if (ciphers != null) {
+			session.setConfig("cipher.s2c", ciphers);
+			session.setConfig("cipher.c2s", ciphers);
+		}
+		if (macs != null) {
+			session.setConfig("mac.s2c", macs);
+			session.setConfig("mac.c2s", macs);
+		}
+	}
+	
+	/** Picks a profile for a file from its name alone, for when its contents can't be looked at.
+	 * Files with a known compressed extension get {@link #BULK_INCOMPRESSIBLE}, anything else {@link #BULK_COMPRESSIBLE}.
+	 * @param fileName The file's name or path.
+	 * @return The profile.
+	 */
+	public static SSHTransferProfile forName(String fileName) {
+		if (COMPRESSED_EXTENSIONS.contains(extension(fileName)))
+			return BULK_INCOMPRESSIBLE;
+		return BULK_COMPRESSIBLE;
+	}
+	
+	/** Picks a profile for a local file.
+	 * Files with a known compressed extension and very small files get {@link #BULK_INCOMPRESSIBLE},
+	 * and files with a known text extension and directories get {@link #BULK_COMPRESSIBLE}.
+	 * Other files are compressed if the start of the file looks like text.
+	 * @param file The file.
+	 * @return The profile.
+	 */
+	public static SSHTransferProfile forFile(File file) {
+		if (file.isDirectory())
+			return BULK_COMPRESSIBLE;
+		String ext = extension(file.getName());
+		if (COMPRESSED_EXTENSIONS.contains(ext))
+			return BULK_INCOMPRESSIBLE;
+		if (TEXT_EXTENSIONS.contains(ext))
+			return BULK_COMPRESSIBLE;
+		if (file.length() < SMALL_FILE)
+			return BULK_INCOMPRESSIBLE;
+		return looksLikeText(file) ? BULK_COMPRESSIBLE : BULK_INCOMPRESSIBLE;
+	}
+	
+	private static String extension(String fileName) {
+		int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar));
+		int dot = fileName.lastIndexOf('.');
+		if (dot <= slash + 1)
+			return "";
+		return fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+	
+	/* Text is almost all printable ASCII or UTF-8; compressed data is evenly spread over all byte values */
+	private static boolean looksLikeText(File file) {
+		byte[] buf = new byte[SNIFF_SIZE];
+		int len = 0;
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int r;
+			while (len < buf.length && (r = in.read(buf, len, buf.length - len)) > 0)
+				len += r;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if (len == 0)
+			return false;
+		int binary = 0;
+		for (int i = 0; i < len; i++) {
+			int b = buf[i] & 0xff;
+			if (b < 0x09 || (b > 0x0d && b < 0x20) || b == 0x7f)
+				binary++;
+		}
+		return binary * 100 < len;	//less than 1% control characters
+	}
+}
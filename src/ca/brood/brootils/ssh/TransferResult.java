@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.security.MessageDigest;
+
+/** The outcome of a single SCP transfer made by {@link SSHSession}.
+ * @author Charles Hache
+ *
+ */
+public class TransferResult {
+	private final String remoteFile;
+	private final String localFile;
+	private final boolean toRemote;
+	private final long startNanos;
+	private long durationNanos;
+	private long bytes;
+	private boolean success;
+	private Exception cause;
+	private int files;
+	private int directories;
+	private MessageDigest digest;
+	private String digestHex;
+	private boolean verified;
+	
+	TransferResult(String remoteFile, String localFile, boolean toRemote) {
+		this.remoteFile = remoteFile;
+		this.localFile = localFile;
+		this.toRemote = toRemote;
+		this.startNanos = System.nanoTime();
+		this.durationNanos = 0;
+		this.bytes = 0;
+		this.success = false;
+		this.cause = null;
+		this.files = 0;
+		this.directories = 0;
+		this.digest = null;
+		this.digestHex = null;
+		this.verified = false;
+	}
+	
+	void addBytes(long count) {
+		bytes += count;
+	}
+	
+	void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+	
+	/* Counts file content as it's copied, and adds it to the digest */
+	void addData(byte[] buf, int off, int len) {
+		bytes += len;
+		if (digest != null)
+			digest.update(buf, off, len);
+	}
+	
+	void fileDone() {
+		files++;
+	}
+	
+	void directoryDone() {
+		directories++;
+	}
+	
+	/* True if exactly one file, and no directories, were transferred */
+	boolean isSingleFile() {
+		return files == 1 && directories == 0;
+	}
+	
+	void setVerified(boolean verified) {
+		this.verified = verified;
+	}
+	
+	void finish(boolean success, Exception cause) {
+		this.durationNanos = System.nanoTime() - startNanos;
+		this.success = success;
+		this.cause = cause;
+	}
+	
+	/** Gets the path of the file on the remote host.
+	 * @return The remote path.
+	 */
+	public String getRemoteFile() {
+		return remoteFile;
+	}
+	
+	/** Gets the path of the file on the local machine.
+	 * @return The local path, or null if the data came from or went to a stream.
+	 */
+	public String getLocalFile() {
+		return localFile;
+	}
+	
+	/** Checks the direction of the transfer.
+	 * @return true if the file was sent to the remote host, false if it was fetched from it.
+	 */
+	public boolean isUpload() {
+		return toRemote;
+	}
+	
+	/** Checks whether the file was transferred.
+	 * @return true if the file was transferred, false otherwise.
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+	
+	/** Gets the number of bytes of file content that were transferred.
+	 * @return The byte count.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+	
+	/** Gets how long the transfer took, including getting a session and opening the channels.
+	 * @return The duration in milliseconds.
+	 */
+	public long getDurationMillis() {
+		return durationNanos / 1000000L;
+	}
+	
+	/** Gets the checksum of the file's contents, computed as they were transferred.
+	 * See {@link SSHSession#setTransferDigest(String, boolean)}.
+	 * @return The checksum in hex, or null if checksums are off or more than one file was transferred.
+	 */
+	public synchronized String getDigest() {
+		if (digestHex == null && digest != null && isSingleFile())
+			digestHex = SSHSession.toHex(digest.digest());
+		return digestHex;
+	}
+	
+	/** Checks whether the remote file's checksum was computed on the remote host and matched {@link #getDigest()}.
+	 * @return true if the transfer was verified.
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+	
+	/** Gets the number of files that were transferred, which can be more than one for a directory.
+	 * @return The file count.
+	 */
+	public int getFileCount() {
+		return files;
+	}
+	
+	/** Gets the average throughput of the transfer.
+	 * @return The rate in bytes per second, or 0 if the transfer took no measurable time.
+	 */
+	public double getBytesPerSecond() {
+		if (durationNanos <= 0)
+			return 0;
+		return bytes * 1000000000.0 / durationNanos;
+	}
+	
+	/** Gets the exception that made the transfer fail, if there was one.
+	 * A transfer can also fail without an exception, for example if the remote scp reports an error.
+	 * @return The exception, or null.
+	 */
+	public Exception getCause() {
+		return cause;
+	}
+	
+	@Override
+	public String toString() {
+		String local = (localFile == null ? "stream" : localFile);
+		return (toRemote ? local+" -> "+remoteFile : remoteFile+" -> "+local)
+				+(success ? " ok, " : " failed, ")+bytes+" bytes in "+getDurationMillis()+"ms ("+(long)(getBytesPerSecond()/1024)+" KB/s)";
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** A thread that keeps the tunnels of an {@link SSHSession} up.
+ * <p>
+ * It turns on SSH keepalives for the tunnel sessions, so that JSch disconnects a session
+ * whose server has stopped answering within a few seconds, and checks the sessions often.
+ * When a session is found disconnected, a new one is connected and every port forward
+ * that was added to it with {@link SSHSession#forwardPort(PortForward)} is added back.
+ * Failed reconnects are retried with an exponential backoff, with jitter so that many
+ * clients that lost the same server don't all come back at the same moment.
+ * <p>
+ * Nothing is done until the first port forward has been added, and nothing more after
+ * {@link SSHSession#close()}.  The thread is a daemon; stop it with {@link #shutdown()}.
+ * @author Charles Hache
+ *
+ */
+public class TunnelKeepaliveThread extends Thread {
+	private Logger log;
+	private final SSHSession session;
+	private final Random random;
+	private volatile boolean running;
+	private volatile long checkIntervalMillis;
+	private volatile long minBackoffMillis;
+	private volatile long maxBackoffMillis;
+	private volatile long reconnects;
+	
+	/** Creates a thread to supervise the given session's tunnels, with the default settings:
+	 * checks every second, a keepalive every 2 seconds with 3 allowed to go unanswered,
+	 * and reconnect attempts backing off from half a second to 30 seconds.
+	 * Call {@link #start()} to start it.
+	 * @param session The session whose tunnels to keep up.
+	 */
+	public TunnelKeepaliveThread(SSHSession session) {
+		super("TunnelKeepaliveThread");
+		setDaemon(true);
+		log = LogManager.getLogger(TunnelKeepaliveThread.class);
+		this.session = session;
+		this.random = new Random();
+		this.running = true;
+		this.checkIntervalMillis = 1000;
+		this.minBackoffMillis = 500;
+		this.maxBackoffMillis = 30000;
+		this.reconnects = 0;
+		session.setTunnelKeepalive(2000, 3);
+	}
+	
+	/** Sets how often the tunnel session is checked.
+	 * @param millis The check interval in milliseconds.
+	 */
+	public void setCheckInterval(long millis) {
+		this.checkIntervalMillis = Math.max(10, millis);
+	}
+	
+	/** Sets the keepalives used to notice a dead tunnel session.  See {@link SSHSession#setTunnelKeepalive(int, int)}.
+	 * @param intervalMillis The keepalive interval in milliseconds.
+	 * @param countMax The number of unanswered keepalives before the session is considered dead.
+	 */
+	public void setKeepalive(int intervalMillis, int countMax) {
+		session.setTunnelKeepalive(intervalMillis, countMax);
+	}
+	
+	/** Sets the range of delays between failed reconnect attempts.
+	 * The delay doubles with each failure, up to maxMillis, and each delay is randomly between half and all of that.
+	 * @param minMillis The delay after the first failure.
+	 * @param maxMillis The largest delay.
+	 */
+	public void setBackoff(long minMillis, long maxMillis) {
+		this.minBackoffMillis = Math.max(1, minMillis);
+		this.maxBackoffMillis = Math.max(this.minBackoffMillis, maxMillis);
+	}
+	
+	/** Gets the number of times the tunnels have been successfully reconnected.
+	 * @return The reconnect count.
+	 */
+	public long getReconnectCount() {
+		return reconnects;
+	}
+	
+	/** Stops the thread and waits for it to finish.  The tunnels are left as they are.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public void run() {
+		int failures = 0;
+		while (running) {
+			long delay = checkIntervalMillis;
+			if (!session.areTunnelsActive() && !session.getForwards().isEmpty()) {
+				try {
+					if (session.reconnectTunnels()) {
+						reconnects++;
+						log.info("Reconnected tunnels after "+failures+" failed attempts");
+					}
+					failures = 0;
+				} catch (Exception e) {
+					failures++;
+					delay = backoff(failures);
+					log.warn("Couldn't reconnect tunnels, attempt "+failures+", retrying in "+delay+"ms: "+e.getMessage());
+				}
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				//woken up by shutdown()
+			}
+		}
+	}
+	
+	private long backoff(int failures) {
+		long delay = maxBackoffMillis;
+		if (failures < 31)
+			delay = Math.min(maxBackoffMillis, minBackoffMillis << (failures - 1));
+		return delay / 2 + (long)(random.nextDouble() * (delay / 2 + 1));
+	}
+}
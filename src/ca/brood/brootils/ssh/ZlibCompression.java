@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Charles Hache <chache@brood.ca>. All rights reserved. 
+ * 
+ * This file is part of the brootils project.
+ * brootils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * brootils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with brootils.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Contributors:
+ *     Charles Hache <chache@brood.ca> - initial API and implementation
+ ******************************************************************************/
+package ca.brood.brootils.ssh;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/** SSH zlib compression for JSch, done with the JDK's {@link Deflater} and {@link Inflater}.
+ * <p>
+ * JSch's own zlib support needs the separate jzlib library.  This class does the same job
+ * without it, and {@link SSHTransferProfile} points JSch at it for the "zlib" and
+ * "zlib@openssh.com" methods.  It is only public so that JSch can instantiate it.
+ * <p>
+ * Each direction of an SSH connection is one zlib stream, flushed at the end of every packet.
+ * @author Charles Hache
+ *
+ */
+public final class ZlibCompression implements com.jcraft.jsch.Compression {
+	//room left after the compressed payload for the padding and MAC that JSch adds
+	private static final int BUFFER_MARGIN = 52;
+	private static final int BUF_SIZE = 4096;
+	
+	private Logger log;
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	private byte[] tmpbuf = new byte[BUF_SIZE];
+	private byte[] outbuf = new byte[BUF_SIZE];
+	
+	public ZlibCompression() {
+		log = LogManager.getLogger(ZlibCompression.class);
+	}
+
+	@Override
+	public void init(int type, int level) {
+		if (type == DEFLATER) {
+			deflater = new Deflater(level);
+		} else if (type == INFLATER) {
+			inflater = new Inflater();
+		}
+	}
+
+	/* Compresses buf[start, len[0]) in place.
+	 * On return the compressed data is at buf[start, len[0]), in buf or a bigger copy of it.
+	 */
+	@Override
+	public byte[] compress(byte[] buf, int start, int[] len) {
+		deflater.setInput(buf, start, len[0] - start);
+		int outlen = 0;
+		int count;
+		do {
+			count = deflater.deflate(tmpbuf, 0, tmpbuf.length, Deflater.SYNC_FLUSH);
+			outlen = append(tmpbuf, count, outlen);
+		} while (count == tmpbuf.length);
+		
+		if (buf.length < start + outlen + BUFFER_MARGIN) {
+			byte[] bigger = new byte[(start + outlen + BUFFER_MARGIN) * 2];
+			System.arraycopy(buf, 0, bigger, 0, start);
+			buf = bigger;
+		}
+		System.arraycopy(outbuf, 0, buf, start, outlen);
+		len[0] = start + outlen;
+		return buf;
+	}
+
+	/* Decompresses len[0] bytes at buf[start] in place.
+	 * On return the data is at buf[start, start+len[0]), in buf or a bigger copy of it.
+	 */
+	@Override
+	public byte[] uncompress(byte[] buf, int start, int[] len) {
+		inflater.setInput(buf, start, len[0]);
+		int outlen = 0;
+		try {
+			int count;
+			do {
+				count = inflater.inflate(tmpbuf);
+				outlen = append(tmpbuf, count, outlen);
+			} while (count > 0);
+		} catch (DataFormatException e) {
+			log.error("Corrupt compressed SSH packet", e);
+			return null;
+		}
+		
+		if (buf.length < start + outlen) {
+			byte[] bigger = new byte[start + outlen];
+			System.arraycopy(buf, 0, bigger, 0, start);
+			buf = bigger;
+		}
+		System.arraycopy(outbuf, 0, buf, start, outlen);
+		len[0] = outlen;
+		return buf;
+	}
+	
+	private int append(byte[] data, int count, int outlen) {
+		if (outbuf.length < outlen + count) {
+			byte[] bigger = new byte[Math.max(outbuf.length * 2, outlen + count)];
+			System.arraycopy(outbuf, 0, bigger, 0, outlen);
+			outbuf = bigger;
+		}
+		System.arraycopy(data, 0, outbuf, outlen, count);
+		return outlen + count;
+	}
+}